@@ -0,0 +1,258 @@
+package com.zyh;
+
+import com.zyh.utils.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+    批量运行器：在同一个 JVM 中并发执行大量脚本，省去每个脚本的 JVM 启动和解释器预热
+
+    脚本来自命令行参数和 --manifest 文件（每行一个路径，相对于清单所在的目录，空行和 # 开头的行忽略）。
+    每个脚本都有自己的 Interpreter、全局环境和 ExecutionContext，print 的输出和错误信息分别捕获在内存中，
+    按脚本在列表中的顺序依次输出（指定 --out-dir 时写入 <序号>-<文件名>.out / .err）。
+    编译结果放在进程共享的模块缓存中，同一个文件（包括被多个脚本 import 的库）只扫描、解析一次。
+
+    每个脚本的退出码按 sysexits 的约定：0 成功，65 编译错误，66 无法读取，70 运行时错误；
+    最后输出每个脚本的退出码、编译和执行耗时，任一脚本失败时运行器以 70 退出。
+
+    Usage: BatchRunner [--threads N] [--manifest file]... [--out-dir dir] [--lazy] [--compact]
+                       [--max-steps N] [--max-time ms] [--max-depth N] [--max-objects N] [script...]
+ */
+public class BatchRunner {
+
+    private static final String USAGE = "Usage: BatchRunner [--threads N] [--manifest file]... [--out-dir dir] [--lazy] [--compact] "
+            + "[--max-steps N] [--max-time ms] [--max-depth N] [--max-objects N] [script...]";
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private Path outDir;
+
+    private boolean lazy;
+
+    private boolean compact;
+
+    private long maxSteps;
+
+    private long maxMillis;
+
+    private long maxDepth;
+
+    private long maxObjects;
+
+    private final List<Path> scripts = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException {
+        BatchRunner runner = new BatchRunner();
+        try {
+            runner.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(64);
+        }
+
+        if (!runner.runAll()) System.exit(70);
+    }
+
+    private void parseArgs(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--threads": threads = positive(arg, value(args, ++i)); break;
+                case "--manifest": manifest(Paths.get(value(args, ++i))); break;
+                case "--out-dir": outDir = Paths.get(value(args, ++i)); break;
+                case "--lazy": lazy = true; break;
+                case "--compact": compact = true; break;
+                case "--max-steps": maxSteps = limit(arg, value(args, ++i)); break;
+                case "--max-time": maxMillis = limit(arg, value(args, ++i)); break;
+                case "--max-depth": maxDepth = limit(arg, value(args, ++i)); break;
+                case "--max-objects": maxObjects = limit(arg, value(args, ++i)); break;
+                default:
+                    if (arg.startsWith("--")) throw new IllegalArgumentException("Unknown option '" + arg + "'.");
+                    scripts.add(Paths.get(arg));
+            }
+        }
+
+        if (scripts.isEmpty()) throw new IllegalArgumentException("No scripts to run.");
+    }
+
+    private void manifest(Path manifest) throws IOException {
+        Path base = manifest.toAbsolutePath().getParent();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            scripts.add(base.resolve(line));
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for '" + args[i - 1] + "'.");
+        return args[i];
+    }
+
+    private static int positive(String option, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) throw new IllegalArgumentException(option + " must be positive.");
+        return n;
+    }
+
+    // 执行预算的上限，0 表示不限制
+    private static long limit(String option, String value) {
+        long limit = Long.parseLong(value);
+        if (limit < 0) throw new IllegalArgumentException(option + " must not be negative.");
+        return limit;
+    }
+
+    private boolean runAll() throws IOException {
+        if (outDir != null) Files.createDirectories(outDir);
+
+        LoxEngine engine = new LoxEngine(lazy, compact);
+        ExecutionBudget budget = new ExecutionBudget(maxSteps, maxMillis, (int) Math.min(maxDepth, Integer.MAX_VALUE), maxObjects);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Path script : scripts) {
+            futures.add(executor.submit(() -> run(engine, script, budget)));
+        }
+
+        // 按列表顺序输出，前面的脚本还没结束时后面已经结束的脚本先等着
+        List<Result> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Result result = join(futures.get(i), scripts.get(i));
+                results.add(result);
+                publish(i + 1, result);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        return summary(results, System.nanoTime() - start);
+    }
+
+    private static Result run(LoxEngine engine, Path script, ExecutionBudget budget) {
+        Result result = new Result(script);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        long start = System.nanoTime();
+        Script compiled;
+        try {
+            compiled = engine.load(script);
+        } catch (IOException e) {
+            result.fail(66, "Can't read " + script + " (" + e.getClass().getSimpleName() + ").");
+            return result;
+        } catch (CompileError e) {
+            result.fail(65, String.join("\n", e.errors));
+            return result;
+        } finally {
+            result.compileNanos = System.nanoTime() - start;
+        }
+
+        start = System.nanoTime();
+        try {
+            compiled.execute(null, Collections.emptyMap(), new LoxOutput(output), budget);
+        } catch (RuntimeError e) {
+            result.fail(70, e.getMessage() + "\n[line " + e.token.line + "]");
+        } catch (RuntimeException | StackOverflowError e) {
+            result.fail(70, "Internal error: " + e);
+        } finally {
+            result.runNanos = System.nanoTime() - start;
+            result.output = output.toByteArray();
+        }
+        return result;
+    }
+
+    private static Result join(Future<Result> future, Path script) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Result result = new Result(script);
+            result.fail(70, "Interrupted.");
+            return result;
+        } catch (ExecutionException e) {
+            Result result = new Result(script);
+            result.fail(70, "Internal error: " + e.getCause());
+            return result;
+        }
+    }
+
+    private void publish(int index, Result result) throws IOException {
+        if (outDir != null) {
+            String name = String.format("%04d-%s", index, result.script.getFileName());
+            Files.write(outDir.resolve(name + ".out"), result.output);
+            if (result.errors != null) {
+                Files.write(outDir.resolve(name + ".err"), (result.errors + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            return;
+        }
+
+        System.out.println("==> " + result.script + " <==");
+        System.out.flush();
+        System.out.write(result.output);
+        if (result.errors != null) System.out.println(result.errors);
+        System.out.flush();
+    }
+
+    private boolean summary(List<Result> results, long elapsed) {
+        int failed = 0;
+        long compileNanos = 0;
+        long runNanos = 0;
+
+        System.out.println();
+        System.out.println(String.format("%-6s%12s%12s  %s", "exit", "compile ms", "run ms", "script"));
+        for (Result result : results) {
+            System.out.println(String.format("%-6d%12s%12s  %s",
+                    result.exitCode, millis(result.compileNanos), millis(result.runNanos), result.script));
+            if (result.exitCode != 0) failed++;
+            compileNanos += result.compileNanos;
+            runNanos += result.runNanos;
+        }
+
+        System.out.println(results.size() + " scripts, " + failed + " failed, " + threads + " threads"
+                + ", wall " + millis(elapsed) + " ms"
+                + ", compile " + millis(compileNanos) + " ms, run " + millis(runNanos) + " ms (sum over scripts)");
+        return failed == 0;
+    }
+
+    private static String millis(double nanos) {
+        return String.format("%.2f", nanos / 1_000_000.0);
+    }
+
+    private static final class Result {
+        final Path script;
+
+        int exitCode;
+
+        // 编译错误、运行时错误或读取失败的信息，成功时为 null
+        String errors;
+
+        byte[] output = new byte[0];
+
+        long compileNanos;
+
+        long runNanos;
+
+        Result(Path script) {
+            this.script = script;
+        }
+
+        void fail(int exitCode, String errors) {
+            this.exitCode = exitCode;
+            this.errors = errors;
+        }
+    }
+}
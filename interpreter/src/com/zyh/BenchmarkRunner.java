@@ -0,0 +1,356 @@
+package com.zyh;
+
+import com.zyh.utils.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*
+    Are We Fast Yet 基准运行器
+
+    每个基准由 benchmarks/awfy/core.jlox 和 benchmarks/awfy/<name>.jlox 组成，
+    基准脚本需要定义全局函数 innerBenchmarkLoop(innerIterations)，返回 true 表示结果校验通过。
+    可选的全局变量 defaultInnerIterations 指定默认的内循环次数。
+
+    --threads 1,2,4 测量吞吐量：同时启动 N 个互相隔离的解释器各自运行完整的迭代，
+    报告每秒完成的迭代数以及相对单线程的加速比。
+
+    Usage: BenchmarkRunner [--iterations N] [--warmup N] [--inner N] [--mode name]... [--threads N,N...] [--dir path] [benchmark...]
+ */
+public class BenchmarkRunner {
+
+    private static final List<String> DEFAULT_BENCHMARKS = Arrays.asList(
+            "Richards", "DeltaBlue", "NBody", "Bounce", "Sieve",
+            "Towers", "Queens", "List", "Permute", "Storage");
+
+    private static final String CORE = "core";
+
+    /*
+        解释器的执行方式，用于对比不同执行路径的性能
+     */
+    enum Mode {
+        // 源码只编译一次，每轮迭代直接调用 innerBenchmarkLoop
+        AST,
+        // 每轮迭代都重新扫描、解析、解析作用域并执行定义，相当于每次走一遍 JLox.run
+        RECOMPILE,
+        // 同 RECOMPILE，但顶层函数和方法的函数体在第一次调用时才解析
+        LAZY,
+        // 同 AST，但表达式展开成 CompactExpr 求值
+        COMPACT;
+
+        String displayName() {
+            return name().toLowerCase();
+        }
+
+        static Mode of(String name) {
+            for (Mode mode : values()) {
+                if (mode.displayName().equals(name)) return mode;
+            }
+            StringBuilder expected = new StringBuilder();
+            for (Mode mode : values()) {
+                if (expected.length() > 0) expected.append(", ");
+                expected.append(mode.displayName());
+            }
+            throw new IllegalArgumentException("Unknown mode '" + name + "', expected one of: " + expected + ".");
+        }
+    }
+
+    private int iterations = 20;
+
+    private int warmup = -1;
+
+    private int inner = -1;
+
+    private Path dir = Paths.get("benchmarks", "awfy");
+
+    private final List<Mode> modes = new ArrayList<>();
+
+    private final List<String> benchmarks = new ArrayList<>();
+
+    private final List<Integer> threads = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        try {
+            runner.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: BenchmarkRunner [--iterations N] [--warmup N] [--inner N] [--mode name]... [--threads N,N...] [--dir path] [benchmark...]");
+            System.exit(64);
+        }
+
+        boolean success = runner.threads.isEmpty() ? runner.runAll() : runner.runThroughput();
+        if (!success) System.exit(70);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--iterations": iterations = positive(arg, value(args, ++i)); break;
+                case "--warmup": warmup = Integer.parseInt(value(args, ++i)); break;
+                case "--inner": inner = positive(arg, value(args, ++i)); break;
+                case "--mode": modes.add(Mode.of(value(args, ++i))); break;
+                case "--threads":
+                    for (String n : value(args, ++i).split(",")) threads.add(positive(arg, n.trim()));
+                    break;
+                case "--dir": dir = Paths.get(value(args, ++i)); break;
+                default:
+                    if (arg.startsWith("--")) throw new IllegalArgumentException("Unknown option '" + arg + "'.");
+                    benchmarks.add(arg);
+            }
+        }
+
+        if (modes.isEmpty()) modes.add(Mode.AST);
+        if (benchmarks.isEmpty()) benchmarks.addAll(DEFAULT_BENCHMARKS);
+        // 默认把前一半迭代视为预热
+        if (warmup < 0) warmup = iterations / 2;
+        if (warmup >= iterations) throw new IllegalArgumentException("--warmup must be smaller than --iterations.");
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for '" + args[i - 1] + "'.");
+        return args[i];
+    }
+
+    private static int positive(String option, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) throw new IllegalArgumentException(option + " must be positive.");
+        return n;
+    }
+
+    private boolean runAll() throws IOException {
+        String core = read(CORE);
+        Map<String, Map<Mode, Result>> results = new LinkedHashMap<>();
+        boolean success = true;
+
+        for (String name : benchmarks) {
+            String source = read(name.toLowerCase());
+            Map<Mode, Result> byMode = new LinkedHashMap<>();
+
+            for (Mode mode : modes) {
+                Result result = run(name, core, source, mode);
+                byMode.put(mode, result);
+                report(name, mode, result);
+                success &= result.ok;
+            }
+            results.put(name, byMode);
+        }
+
+        summary(results);
+        return success;
+    }
+
+    private String read(String name) throws IOException {
+        Path path = dir.resolve(name + ".jlox");
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    private Result run(String name, String core, String source, Mode mode) {
+        Result result = new Result();
+        Interpreter interpreter = null;
+        JLoxCallable loop = null;
+
+        ExecutionContext context = new ExecutionContext();
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+
+            if (interpreter == null || mode == Mode.RECOMPILE || mode == Mode.LAZY) {
+                interpreter = new Interpreter(context);
+                if (!load(context, interpreter, core, mode) || !load(context, interpreter, source, mode)) {
+                    System.err.println(name + ": failed to load benchmark.");
+                    return result;
+                }
+                loop = innerBenchmarkLoop(name, interpreter);
+                if (loop == null) return result;
+                if (result.inner < 0) result.inner = innerIterations(interpreter);
+            }
+
+            Object ok;
+            try {
+                ok = loop.call(interpreter, Collections.singletonList((double) result.inner));
+            } catch (RuntimeError e) {
+                context.runtimeError(e);
+                return result;
+            } finally {
+                context.output().flush();
+            }
+
+            long elapsed = System.nanoTime() - start;
+            if (!Boolean.TRUE.equals(ok)) {
+                System.err.println(name + ": benchmark result is incorrect.");
+                return result;
+            }
+            result.times.add(elapsed);
+        }
+
+        result.ok = true;
+        return result;
+    }
+
+    private static boolean load(ExecutionContext context, Interpreter interpreter, String source, Mode mode) {
+        context.resetErrors();
+
+        List<Token> tokens = new Scanner(source, context).scanTokens();
+        List<Stmt> statements = new Parser(tokens, context, null, mode == Mode.LAZY).parse();
+        if (context.hadError()) return false;
+
+        new Resolver(context).resolve(statements);
+        if (context.hadError()) return false;
+        new TypeInference().infer(statements);
+        if (mode == Mode.COMPACT) new Compactor().compact(statements);
+
+        interpreter.interpre(statements);
+        return !context.hadRuntimeError();
+    }
+
+    private static JLoxCallable innerBenchmarkLoop(String name, Interpreter interpreter) {
+        Object loop = interpreter.getGlobal("innerBenchmarkLoop");
+        if (!(loop instanceof JLoxCallable) || ((JLoxCallable) loop).arity() != 1) {
+            System.err.println(name + ": innerBenchmarkLoop(innerIterations) is not defined.");
+            return null;
+        }
+        return (JLoxCallable) loop;
+    }
+
+    private int innerIterations(Interpreter interpreter) {
+        if (inner > 0) return inner;
+
+        Object value = interpreter.getGlobal("defaultInnerIterations");
+        if (value instanceof Double) return ((Double) value).intValue();
+        return 1;
+    }
+
+    private void report(String name, Mode mode, Result result) {
+        System.out.println(name + " [" + mode.displayName() + "] inner=" + result.inner);
+        if (!result.ok) {
+            System.out.println("  FAILED");
+            return;
+        }
+
+        StringBuilder curve = new StringBuilder("  iterations (ms):");
+        for (long time : result.times) {
+            curve.append(' ').append(millis(time));
+        }
+        System.out.println(curve);
+
+        System.out.println("  first: " + millis(result.times.get(0)) + " ms"
+                + ", steady: " + millis(result.steady(warmup)) + " ms/iteration"
+                + " (mean of iterations " + (warmup + 1) + "-" + iterations
+                + ", min " + millis(result.min(warmup)) + " ms)");
+    }
+
+    private void summary(Map<String, Map<Mode, Result>> results) {
+        System.out.println();
+        StringBuilder header = new StringBuilder(String.format("%-12s", "Benchmark"));
+        for (Mode mode : modes) {
+            header.append(String.format("%16s", mode.displayName() + " (ms)"));
+        }
+        System.out.println(header);
+
+        for (Map.Entry<String, Map<Mode, Result>> entry : results.entrySet()) {
+            StringBuilder line = new StringBuilder(String.format("%-12s", entry.getKey()));
+            for (Mode mode : modes) {
+                Result result = entry.getValue().get(mode);
+                line.append(String.format("%16s", result.ok ? millis(result.steady(warmup)) : "failed"));
+            }
+            System.out.println(line);
+        }
+    }
+
+    private boolean runThroughput() throws IOException {
+        String core = read(CORE);
+        ExecutorService executor = LoxThreads.newTaskExecutor();
+        boolean success = true;
+
+        try {
+            for (String name : benchmarks) {
+                String source = read(name.toLowerCase());
+                double baseline = 0;
+
+                System.out.println(name + " [throughput] iterations=" + iterations + " per thread");
+                for (int n : threads) {
+                    long start = System.nanoTime();
+                    List<Future<Result>> futures = new ArrayList<>();
+                    for (int t = 0; t < n; t++) {
+                        futures.add(executor.submit(() -> run(name, core, source, Mode.AST)));
+                    }
+
+                    boolean ok = true;
+                    for (Future<Result> future : futures) {
+                        ok &= join(future).ok;
+                    }
+                    long elapsed = System.nanoTime() - start;
+
+                    if (!ok) {
+                        System.out.println(String.format("  %3d threads: FAILED", n));
+                        success = false;
+                        continue;
+                    }
+
+                    // 吞吐量以每秒完成的迭代数计，加速比以第一组测量中平均每个线程的吞吐量为基准
+                    double perSecond = (double) n * iterations / (elapsed / 1_000_000_000.0);
+                    if (baseline == 0) baseline = perSecond / n;
+                    System.out.println(String.format("  %3d threads: %10.2f iterations/s, speedup %.2fx (ideal %dx)",
+                            n, perSecond, perSecond / baseline, n));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return success;
+    }
+
+    private static Result join(Future<Result> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return new Result();
+        }
+    }
+
+    private static String millis(double nanos) {
+        return String.format("%.2f", nanos / 1_000_000.0);
+    }
+
+    private static class Result {
+        final List<Long> times = new ArrayList<>();
+
+        int inner = -1;
+
+        boolean ok = false;
+
+        double steady(int warmup) {
+            double total = 0;
+            for (int i = warmup; i < times.size(); i++) {
+                total += times.get(i);
+            }
+            return total / (times.size() - warmup);
+        }
+
+        double min(int warmup) {
+            long min = Long.MAX_VALUE;
+            for (int i = warmup; i < times.size(); i++) {
+                min = Math.min(min, times.get(i));
+            }
+            return min;
+        }
+    }
+}
@@ -7,93 +7,222 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
 
 public class JLox {
 
-    private static boolean hadError = false;
+    private static final String USAGE = "Usage: JLox [--out file] [--max-steps N] [--max-time ms] [--max-depth N] [--max-objects N] [--lazy] [--compact] [--pipeline] [--trace file] [--trace-statements] [--coverage file] [script]";
 
-    private static boolean hadRuntimeError = false;
-
-    private static final Interpreter interpreter = new Interpreter();
+    // 追踪缓冲区能容纳的事件个数，写满后覆盖最早的事件
+    private static final int TRACE_CAPACITY = 1 << 20;
 
     public static void main(String[] args) throws IOException {
-        if(args.length > 1){
-            System.out.println("Usage: JLox [script]");
+        String script = null;
+        String outputPath = null;
+        long maxSteps = 0;
+        long maxMillis = 0;
+        long maxDepth = 0;
+        long maxObjects = 0;
+        boolean lazy = false;
+        boolean compact = false;
+        boolean pipeline = false;
+        String tracePath = null;
+        boolean traceStatements = false;
+        String coveragePath = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if(args[i].equals("--lazy")){
+                    lazy = true;
+                    continue;
+                }
+                if(args[i].equals("--compact")){
+                    compact = true;
+                    continue;
+                }
+                if(args[i].equals("--pipeline")){
+                    pipeline = true;
+                    continue;
+                }
+                if(args[i].equals("--trace-statements")){
+                    traceStatements = true;
+                    continue;
+                }
+                if(args[i].startsWith("--") && i + 1 >= args.length){
+                    throw new IllegalArgumentException();
+                }
+                switch (args[i]) {
+                    case "--out": outputPath = args[++i]; break;
+                    case "--max-steps": maxSteps = limit(args[++i]); break;
+                    case "--max-time": maxMillis = limit(args[++i]); break;
+                    case "--max-depth": maxDepth = limit(args[++i]); break;
+                    case "--max-objects": maxObjects = limit(args[++i]); break;
+                    case "--trace": tracePath = args[++i]; break;
+                    case "--coverage": coveragePath = args[++i]; break;
+                    default:
+                        if(script != null || args[i].startsWith("--"))  throw new IllegalArgumentException();
+                        script = args[i];
+                }
+            }
+            if(traceStatements && tracePath == null)    throw new IllegalArgumentException();
+        } catch (IllegalArgumentException e) {
+            System.out.println(USAGE);
             System.exit(64);
-        } else if(args.length == 1){
-            runFile(args[0]);
-        } else {
-            runPrompt();
         }
+
+        LoxOutput output = outputPath != null ? LoxOutput.file(outputPath) : LoxOutput.stdout();
+        ExecutionBudget budget = new ExecutionBudget(maxSteps, maxMillis, (int) Math.min(maxDepth, Integer.MAX_VALUE), maxObjects);
+        ExecutionContext context = new ExecutionContext(output, System.err, budget,
+                trace(tracePath, traceStatements), coverage(coveragePath));
+        Interpreter interpreter = new Interpreter(context);
+
+        try {
+            if(script != null){
+                runFile(script, lazy, compact, pipeline, context, interpreter);
+            } else {
+                runPrompt(lazy, compact, context, interpreter);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /*
+        追踪开关必须在创建 LoxTrace 和执行任何 Lox 代码之前打开。退出时（包括出错退出）导出追踪文件
+     */
+    private static LoxTrace trace(String path, boolean statements) {
+        if(path == null)    return null;
+        System.setProperty(LoxTrace.PROPERTY, "true");
+        LoxTrace trace = new LoxTrace(TRACE_CAPACITY, statements);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                trace.write(Paths.get(path));
+            } catch (IOException e) {
+                System.err.println("Can't write trace to " + path + ": " + e.getMessage());
+            }
+        }));
+        return trace;
     }
 
-    private static void runPrompt() throws IOException {
+    /*
+        退出时（包括出错退出）写出 LCOV 格式的覆盖率报告
+     */
+    private static LoxCoverage coverage(String path) {
+        if(path == null)    return null;
+
+        LoxCoverage coverage = new LoxCoverage();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                coverage.write(Paths.get(path));
+            } catch (IOException e) {
+                System.err.println("Can't write coverage to " + path + ": " + e.getMessage());
+            }
+        }));
+        return coverage;
+    }
+
+    // 执行预算的上限，0 表示不限制
+    private static long limit(String value) {
+        long limit = Long.parseLong(value);
+        if(limit < 0)   throw new IllegalArgumentException();
+        return limit;
+    }
+
+    private static void runPrompt(boolean lazy, boolean compact, ExecutionContext context, Interpreter interpreter) throws IOException {
         InputStreamReader inputStreamReader = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(inputStreamReader);
+        // 整个会话共用一个 Resolver，顶层声明都是全局变量，行与行之间不需要保留作用域
+        Resolver resolver = new Resolver(context);
 
         for(;;){
+            context.output().flush();
             System.out.print("> ");
+            System.out.flush();
             String line = reader.readLine();
             if(Objects.isNull(line))    break;
-            run(line);
+            run(line, null, lazy, compact, context, interpreter, resolver);
 
             // reset flag
-            hadError = false;
+            context.resetErrors();
         }
     }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    private static void runFile(String path, boolean lazy, boolean compact, boolean pipeline, ExecutionContext context, Interpreter interpreter) throws IOException {
+        Path file = Paths.get(path).toAbsolutePath();
+        byte[] bytes = Files.readAllBytes(file);
+        if(pipeline){
+            runPipelined(new String(bytes, Charset.defaultCharset()), file, lazy, compact, context, interpreter);
+        } else {
+            run(new String(bytes, Charset.defaultCharset()), file, lazy, compact, context, interpreter, new Resolver(context));
+        }
 
-        if(hadError) System.exit(65);
+        if(context.hadError()){
+            context.output().close();
+            System.exit(65);
+        }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
+    /*
+        file 是脚本文件，REPL 中为 null
+     */
+    private static void run(String source, Path file, boolean lazy, boolean compact, ExecutionContext context, Interpreter interpreter, Resolver resolver) {
+        Scanner scanner = new Scanner(source, context);
         List<Token> tokensList = scanner.scanTokens();
 
-        Parser parser = new Parser(tokensList);
+        // 脚本中 import 的相对路径以脚本所在目录为基准
+        Parser parser = new Parser(tokensList, context, file != null ? file.getParent() : null, lazy);
         List<Stmt> statements = parser.parse();
 
-        if(hadError || hadRuntimeError){
+        if(context.hadError() || context.hadRuntimeError()){
             return;
         }
-        Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
 
-        if(hadError){
+        if(context.hadError()){
             return;
         }
+        new TypeInference().infer(statements);
+        if(context.coverage() != null){
+            context.coverage().instrument(file != null ? file.toString() : "<stdin>", statements);
+        }
+        if(compact){
+            new Compactor().compact(statements);
+        }
 
         interpreter.interpre(statements);
 //        System.out.println(new AstPrinter().print(expr));
     }
 
-    public static void error(int line,String message){
-        report(line, "", message);
-    }
-
-    public static void error(Token token,String message){
-        if(token.tokenType == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    /*
+        --pipeline：每条顶层语句解析完就解析作用域并执行，后面的语句同时在另一个线程上扫描、解析。
+        遇到语法错误或作用域错误时停在出错的语句之前（之前的语句已经执行），之后的语句只解析不执行，
+        和整体编译一样报告文件中所有的编译错误；遇到运行时错误时停止，之后的语句不再解析
+     */
+    private static void runPipelined(String source, Path file, boolean lazy, boolean compact, ExecutionContext context, Interpreter interpreter) {
+        // 顶层声明都是全局变量，和 REPL 一样逐条解析作用域
+        Resolver resolver = new Resolver(context);
+        try (PipelinedParser parser = new PipelinedParser(source, context, file.getParent(), lazy)) {
+            for (Stmt statement; (statement = parser.next()) != null; ) {
+                List<Stmt> statements = Collections.singletonList(statement);
+                resolver.resolve(statements);
+                if(context.hadError())  continue;
+
+                new TypeInference().infer(statements);
+                if(context.coverage() != null){
+                    context.coverage().instrument(file.toString(), statements);
+                }
+                if(compact){
+                    new Compactor().compact(statements);
+                }
+
+                interpreter.interpre(statement);
+                if(context.hadRuntimeError())   return;
+            }
         }
     }
-
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
-    }
-
-    public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
-    }
 }
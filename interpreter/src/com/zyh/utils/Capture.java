@@ -0,0 +1,25 @@
+package com.zyh.utils;
+
+/*
+    创建闭包时捕获的一个外层变量
+
+    depth 的含义和 Expr.depth 一样：SLOT 表示创建闭包的函数栈帧中的第 index 个槽位，
+    UPVALUE 表示复制外层函数已经捕获的第 index 个值，大于等于 0 时从创建闭包所在的环境中按 depth 和 name 读取。
+    读到的是 Cell 时捕获的就是 Cell 本身，变量的修改对闭包可见。
+ */
+final class Capture {
+
+    static final Capture[] NONE = new Capture[0];
+
+    final int depth;
+
+    final String name;
+
+    final int index;
+
+    Capture(int depth, String name, int index) {
+        this.depth = depth;
+        this.name = name;
+        this.index = index;
+    }
+}
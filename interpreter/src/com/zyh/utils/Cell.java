@@ -0,0 +1,14 @@
+package com.zyh.utils;
+
+/*
+    被闭包捕获并且会被修改的变量：声明它的作用域和捕获它的闭包共享同一个 Cell，
+    只读的变量直接按值捕获，不需要 Cell。spawn 出的任务可能共享 Cell，所以 value 是 volatile 的。
+ */
+final class Cell {
+
+    volatile Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
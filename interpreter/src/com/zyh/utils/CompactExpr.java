@@ -0,0 +1,76 @@
+package com.zyh.utils;
+
+/*
+    紧凑模式下一个编译单元（一段脚本、一个模块或一个延迟解析的函数体）中所有表达式的节点，按后序展开成几个并列的基本类型数组
+
+    第 i 个节点的类型是 kinds[i]，操作数 a[i]、b[i] 的含义由类型决定（槽位、常量池下标、词法单元下标、跳转目标等）。
+    每棵表达式树占用 [Expr.Compact.start, Expr.Compact.end) 一段，子节点总是排在父节点之前，
+    求值时从前到后依次执行，每个节点从操作数栈取走子节点的值再放回自己的值，所以不需要记录子节点下标；
+    只有 and / or 需要跳过右操作数，a 是跳转目标。
+    字面量、匿名函数放在 constants 中，运算符、变量名、属性名等报错和查找时用到的词法单元放在 tokens 中。
+
+    由 Compactor 在作用域解析之后生成，由 Interpreter.visitCompactExpr 求值，操作数栈直接使用解释器的栈。
+    数组在整个单元展开完之后一次性填入，之后不再修改。
+ */
+final class CompactExpr {
+
+    // 读取变量：a 是槽位或捕获下标，环境变量 a 是距离、b 是变量名
+    static final byte CONST = 0;
+    static final byte LOAD_SLOT = 1;
+    static final byte LOAD_SLOT_CELL = 2;
+    static final byte LOAD_UPVALUE = 3;
+    static final byte LOAD_UPVALUE_CELL = 4;
+    static final byte LOAD_ENV = 5;
+    static final byte LOAD_ENV_CELL = 6;
+    static final byte LOAD_GLOBAL = 7;
+
+    // 赋值：新值留在栈顶作为赋值表达式的值
+    static final byte STORE_SLOT = 8;
+    static final byte STORE_SLOT_CELL = 9;
+    static final byte STORE_UPVALUE_CELL = 10;
+    static final byte STORE_ENV = 11;
+    static final byte STORE_ENV_CELL = 12;
+    static final byte STORE_GLOBAL = 13;
+
+    // 二元和一元运算：b 是运算符。常见的数值运算单独成类，操作数不是数字时和 BINARY 一样处理
+    static final byte ADD = 14;
+    static final byte SUBTRACT = 15;
+    static final byte MULTIPLY = 16;
+    static final byte LESS = 17;
+    static final byte LESS_EQUAL = 18;
+    static final byte GREATER = 19;
+    static final byte GREATER_EQUAL = 20;
+    static final byte BINARY = 21;
+    static final byte UNARY = 22;
+
+    // 左操作数决定结果时保留它并跳到 a，否则弹出它继续求右操作数；b 是覆盖率的分支计数器，没有插桩时为 -1
+    static final byte OR = 23;
+    static final byte AND = 24;
+
+    // a 是参数个数，b 是右括号
+    static final byte CALL = 25;
+
+    // b 是属性名或方括号；CHECK_* 在求新值之前检查对象类型，和树求值的报错顺序一致
+    static final byte GET = 26;
+    static final byte CHECK_INSTANCE = 27;
+    static final byte SET = 28;
+    static final byte INDEX_GET = 29;
+    static final byte CHECK_INDEXABLE = 30;
+    static final byte INDEX_SET = 31;
+
+    // 栈上依次是父类和 this，b 是方法名
+    static final byte SUPER = 32;
+
+    // constants[a] 是匿名函数的声明
+    static final byte CLOSURE = 33;
+
+    byte[] kinds;
+
+    int[] a;
+
+    int[] b;
+
+    Object[] constants;
+
+    Token[] tokens;
+}
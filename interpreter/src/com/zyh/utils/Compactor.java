@@ -0,0 +1,348 @@
+package com.zyh.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    紧凑模式：作用域解析之后，把语句中的每棵表达式树展开，用 Expr.Compact 替换原来的树
+
+    语句仍然是对象树，只有表达式被展开，原来的表达式节点随之不可达。
+    一次 compact 的所有表达式（包括函数、匿名函数和方法体中的）共用一个 CompactExpr，
+    每棵树只多一个记录范围的 Expr.Compact，相同的字面量在常量池中只存一份。
+    延迟解析的函数体在第一次调用时解析完，作为单独的单元展开。
+ */
+public class Compactor implements Visitor {
+
+    private final CompactExpr code = new CompactExpr();
+
+    private byte[] kinds = new byte[64];
+
+    private int[] a = new int[64];
+
+    private int[] b = new int[64];
+
+    private int count;
+
+    private final List<Object> constants = new ArrayList<>();
+
+    // 字面量在常量池中的下标；匿名函数每个都是不同的常量，不放在这里
+    private final Map<Object, Integer> literals = new HashMap<>();
+
+    private final List<Token> tokens = new ArrayList<>();
+
+    // 当前表达式中的匿名函数，表达式展开完之后再展开它们的函数体
+    private final List<Stmt.Function> pending = new ArrayList<>();
+
+    private int depth;
+
+    private int maxDepth;
+
+    /*
+        每个 Compactor 只调用一次，展开完之后填入共用的 CompactExpr
+     */
+    public void compact(List<Stmt> statements) {
+        compactAll(statements);
+
+        code.kinds = Arrays.copyOf(kinds, count);
+        code.a = Arrays.copyOf(a, count);
+        code.b = Arrays.copyOf(b, count);
+        code.constants = constants.toArray();
+        code.tokens = tokens.toArray(new Token[0]);
+    }
+
+    private void compactAll(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            compact(statement);
+        }
+    }
+
+    private void compact(Stmt statement) {
+        if(statement != null)   statement.accept(this);
+    }
+
+    void compactBody(Stmt.Function function) {
+        if(function.lazy != null){
+            function.lazy.compact = true;
+            return;
+        }
+        compactAll(function.body);
+    }
+
+    /*
+        展开一棵表达式树，接在已展开的节点后面。嵌套的匿名函数体在这棵树展开完之后再处理
+     */
+    private Expr compile(Expr expr) {
+        if(expr == null)    return null;
+
+        int start = count;
+        depth = 0;
+        maxDepth = 0;
+        expr.accept(this);
+        Expr.Compact compact = new Expr.Compact(code, start, count, maxDepth);
+
+        List<Stmt.Function> functions = new ArrayList<>(pending);
+        pending.clear();
+        for (Stmt.Function function : functions) {
+            compactBody(function);
+        }
+        return compact;
+    }
+
+    private int emit(byte kind, int first, int second, int stackEffect) {
+        if(count == kinds.length){
+            kinds = Arrays.copyOf(kinds, count * 2);
+            a = Arrays.copyOf(a, count * 2);
+            b = Arrays.copyOf(b, count * 2);
+        }
+        kinds[count] = kind;
+        a[count] = first;
+        b[count] = second;
+
+        depth += stackEffect;
+        maxDepth = Math.max(maxDepth, depth);
+        return count ++;
+    }
+
+    private int constant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    private int literal(Object value) {
+        return literals.computeIfAbsent(value, this::constant);
+    }
+
+    private int token(Token token) {
+        tokens.add(token);
+        return tokens.size() - 1;
+    }
+
+    /*
+        按解析结果选择读取变量的方式，和 Interpreter.lookUpVar 一致
+     */
+    private void load(Token name, Expr expr) {
+        if(expr.depth == Expr.SLOT){
+            emit(expr.boxed ? CompactExpr.LOAD_SLOT_CELL : CompactExpr.LOAD_SLOT, expr.index, 0, 1);
+        } else if(expr.depth >= 0){
+            emit(expr.boxed ? CompactExpr.LOAD_ENV_CELL : CompactExpr.LOAD_ENV, expr.depth, token(name), 1);
+        } else if(expr.depth == Expr.UPVALUE){
+            emit(expr.boxed ? CompactExpr.LOAD_UPVALUE_CELL : CompactExpr.LOAD_UPVALUE, expr.index, 0, 1);
+        } else {
+            emit(CompactExpr.LOAD_GLOBAL, 0, token(name), 1);
+        }
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+
+        byte kind;
+        switch (expr.operator.tokenType) {
+            case PLUS: kind = CompactExpr.ADD; break;
+            case MINUS: kind = CompactExpr.SUBTRACT; break;
+            case STAR: kind = CompactExpr.MULTIPLY; break;
+            case LESS: kind = CompactExpr.LESS; break;
+            case LESS_EQUAL: kind = CompactExpr.LESS_EQUAL; break;
+            case GREATER: kind = CompactExpr.GREATER; break;
+            case GREATER_EQUAL: kind = CompactExpr.GREATER_EQUAL; break;
+            default: kind = CompactExpr.BINARY;
+        }
+        emit(kind, 0, token(expr.operator), -1);
+        return null;
+    }
+
+    @Override
+    public Object visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpr(Expr.Literal expr) {
+        emit(CompactExpr.CONST, literal(expr.value), 0, 1);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        emit(CompactExpr.UNARY, 0, token(expr.operator), 0);
+        return null;
+    }
+
+    @Override
+    public Object visitVarExpr(Expr.Variable expr) {
+        load(expr.name, expr);
+        return null;
+    }
+
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+
+        // 和 Interpreter.visitAssignExpr 的分支一一对应
+        if(expr.boxed){
+            if(expr.depth == Expr.SLOT){
+                emit(CompactExpr.STORE_SLOT_CELL, expr.index, 0, 0);
+            } else if(expr.depth == Expr.UPVALUE){
+                emit(CompactExpr.STORE_UPVALUE_CELL, expr.index, 0, 0);
+            } else {
+                emit(CompactExpr.STORE_ENV_CELL, expr.depth, token(expr.name), 0);
+            }
+        } else if(expr.depth == Expr.SLOT){
+            emit(CompactExpr.STORE_SLOT, expr.index, 0, 0);
+        } else if(expr.depth >= 0){
+            emit(CompactExpr.STORE_ENV, expr.depth, token(expr.name), 0);
+        } else {
+            emit(CompactExpr.STORE_GLOBAL, 0, token(expr.name), 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitLogicExpr(Expr.Logic logic) {
+        logic.left.accept(this);
+        // 不跳转时弹出左操作数，再由右操作数放回一个值
+        int jump = emit(logic.operator.tokenType == TokenType.OR ? CompactExpr.OR : CompactExpr.AND, 0, logic.branch, -1);
+        logic.right.accept(this);
+        a[jump] = count;
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        expr.callee.accept(this);
+        for (Expr argument : expr.arguments) {
+            argument.accept(this);
+        }
+        emit(CompactExpr.CALL, expr.arguments.size(), token(expr.paren), -expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Object visitAnonymousFunExpr(Expr.AnonymousFun anonymousFun) {
+        emit(CompactExpr.CLOSURE, constant(anonymousFun.function), 0, 1);
+        pending.add(anonymousFun.function);
+        return null;
+    }
+
+    @Override
+    public Object visitGetExpr(Expr.Get expr) {
+        expr.object.accept(this);
+        emit(CompactExpr.GET, 0, token(expr.name), 0);
+        return null;
+    }
+
+    @Override
+    public Object visitSetExpr(Expr.Set expr) {
+        expr.object.accept(this);
+        int name = token(expr.name);
+        emit(CompactExpr.CHECK_INSTANCE, 0, name, 0);
+        expr.value.accept(this);
+        emit(CompactExpr.SET, 0, name, -1);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexGetExpr(Expr.IndexGet expr) {
+        expr.object.accept(this);
+        expr.index.accept(this);
+        emit(CompactExpr.INDEX_GET, 0, token(expr.bracket), -1);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexSetExpr(Expr.IndexSet expr) {
+        expr.object.accept(this);
+        int bracket = token(expr.bracket);
+        emit(CompactExpr.CHECK_INDEXABLE, 0, bracket, 0);
+        expr.index.accept(this);
+        expr.value.accept(this);
+        emit(CompactExpr.INDEX_SET, 0, bracket, -2);
+        return null;
+    }
+
+    @Override
+    public Object visitThisExpr(Expr.This expr) {
+        load(expr.keyword, expr);
+        return null;
+    }
+
+    @Override
+    public Object visitSuperExpr(Expr.Super expr) {
+        load(expr.keyword, expr);
+        load(expr.receiver.keyword, expr.receiver);
+        emit(CompactExpr.SUPER, 0, token(expr.method), -1);
+        return null;
+    }
+
+    @Override
+    public Object visitCompactExpr(Expr.Compact expr) {
+        throw new IllegalStateException("Expression is already compacted.");
+    }
+
+    @Override
+    public void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expr = compile(stmt.expr);
+    }
+
+    @Override
+    public void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expr = compile(stmt.expr);
+    }
+
+    @Override
+    public void visitVarStmt(Stmt.Var stmt) {
+        stmt.init = compile(stmt.init);
+    }
+
+    @Override
+    public void visitBlockStmt(Stmt.Block block) {
+        compactAll(block.statements);
+    }
+
+    @Override
+    public void visitIfStmt(Stmt.IF stmt) {
+        stmt.condition = compile(stmt.condition);
+        compact(stmt.thenBranch);
+        compact(stmt.elseBranch);
+    }
+
+    @Override
+    public void visitWhileStmt(Stmt.WHILE stmt) {
+        stmt.condition = compile(stmt.condition);
+        compact(stmt.body);
+        compact(stmt.increment);
+    }
+
+    @Override
+    public void visitLoopContral(Stmt.LOOPCONTRAL loopcontral) {
+    }
+
+    @Override
+    public void visitFunctionStmt(Stmt.Function function) {
+        compactBody(function);
+    }
+
+    @Override
+    public void visitReturnStmt(Stmt.Return stmt) {
+        stmt.value = compile(stmt.value);
+    }
+
+    @Override
+    public void visitImportStmt(Stmt.Import stmt) {
+        stmt.compact = true;
+    }
+
+    @Override
+    public void visitClassStmt(Stmt.Class stmt) {
+        // 父类表达式只是一个变量，保持原样
+        for (Stmt.Function method : stmt.methods) {
+            compactBody(method);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.zyh.utils;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+    LoxEngine 编译源码时出现的词法、语法或作用域错误，errors 按出现顺序保存所有错误信息
+ */
+public class CompileError extends RuntimeException {
+
+    public final List<String> errors;
+
+    public CompileError(List<String> errors) {
+        super(String.join("\n", errors));
+        this.errors = Collections.unmodifiableList(errors);
+    }
+}
@@ -1,29 +1,78 @@
 package com.zyh.utils;
 
 import javax.swing.text.html.parser.AttributeList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+/*
+    变量环境
+
+    spawn 出的任务可能和创建它的线程共享闭包捕获的环境，所以变量表使用 ConcurrentHashMap：
+    读取不加锁，写入对之后的读取可见，并发写入也不会破坏表结构。
+    ConcurrentHashMap 不能存 null，nil 以 NIL 代替。
+ */
 public class Environment {
 
+    private static final Object NIL = new Object();
+
     Environment() {
-        enclosing = null;
+        this(null, null);
     }
 
     Environment(Environment enclosing) {
+        this(enclosing, null);
+    }
+
+    private Environment(Environment enclosing, Environment snapshot) {
         this.enclosing = enclosing;
+        this.snapshot = snapshot;
     }
 
     public final Environment enclosing;
 
-    private final HashMap<String,Object> map = new HashMap<>();
+    // 冻结的全局快照：本层找不到的变量到快照中查找，写入总是落在本层（写时复制），快照本身不会被修改
+    private final Environment snapshot;
+
+    private final ConcurrentHashMap<String,Object> map = new ConcurrentHashMap<>();
+
+    /*
+        以 snapshot 为底创建新的全局环境，不复制任何变量
+     */
+    static Environment overlay(Environment snapshot) {
+        return new Environment(null, snapshot);
+    }
+
+    /*
+        复制出一份独立的全局环境（包括本层覆盖的快照中的变量），用于冻结
+     */
+    Environment flatten() {
+        Environment copy = new Environment();
+        if(snapshot != null)    copy.map.putAll(snapshot.map);
+        copy.map.putAll(map);
+        return copy;
+    }
+
+    private Object lookup(String name) {
+        Object value = map.get(name);
+        if(value == null && snapshot != null)   value = snapshot.map.get(name);
+        return value;
+    }
+
+    static Object wrap(Object value) {
+        return value == null ? NIL : value;
+    }
+
+    static Object unwrap(Object value) {
+        return value == NIL ? null : value;
+    }
 
     void define(String name,Object value){
-        map.put(name,value);
+        map.put(name,wrap(value));
     }
 
     Object get(Token token){
-        if(map.containsKey(token.lexeme)){
-            return map.get(token.lexeme);
+        Object value = lookup(token.lexeme);
+        if(value != null){
+            return unwrap(value);
         }
         if(enclosing != null)   return enclosing.get(token);
 
@@ -31,8 +80,10 @@ public class Environment {
     }
 
     public void assign(Token name, Object value) {
-        if(map.containsKey(name.lexeme)){
-            map.put(name.lexeme,value);
+        if(map.replace(name.lexeme,wrap(value)) != null){
+            return;
+        } else if(snapshot != null && snapshot.map.containsKey(name.lexeme)){
+            map.put(name.lexeme,wrap(value));
             return;
         } else if(enclosing != null){
             enclosing.assign(name,value);
@@ -43,7 +94,7 @@ public class Environment {
     }
 
     public Object getAt(Integer distance, String name) {
-        return ancestor(distance).map.get(name);
+        return unwrap(ancestor(distance).lookup(name));
     }
 
     private Environment ancestor(Integer distance) {
@@ -56,6 +107,6 @@ public class Environment {
     }
 
     public void assignAt(Integer distance, Token name, Object value) {
-        ancestor(distance).map.put(name.lexeme,value);
+        ancestor(distance).map.put(name.lexeme,wrap(value));
     }
 }
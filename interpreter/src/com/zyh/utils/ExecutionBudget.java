@@ -0,0 +1,34 @@
+package com.zyh.utils;
+
+/*
+    一次执行的资源上限，0 表示不限制
+
+    maxSteps      循环迭代次数和函数调用次数之和
+    maxMillis     从开始执行算起的墙钟时间
+    maxCallDepth  Lox 函数调用的嵌套深度
+    maxObjects    创建的实例、数组、Map 和 Channel 的个数
+
+    超出上限时抛出 RuntimeError。spawn 出的任务使用同样的上限，但单独计数。
+ */
+public final class ExecutionBudget {
+
+    public static final ExecutionBudget UNLIMITED = new ExecutionBudget(0, 0, 0, 0);
+
+    final long maxSteps;
+
+    final long maxMillis;
+
+    final int maxCallDepth;
+
+    final long maxObjects;
+
+    public ExecutionBudget(long maxSteps, long maxMillis, int maxCallDepth, long maxObjects) {
+        if (maxSteps < 0 || maxMillis < 0 || maxCallDepth < 0 || maxObjects < 0) {
+            throw new IllegalArgumentException("Budget limits must not be negative.");
+        }
+        this.maxSteps = maxSteps;
+        this.maxMillis = maxMillis;
+        this.maxCallDepth = maxCallDepth;
+        this.maxObjects = maxObjects;
+    }
+}
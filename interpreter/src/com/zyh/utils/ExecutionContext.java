@@ -0,0 +1,154 @@
+package com.zyh.utils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    一次执行的上下文：错误状态、错误报告以及 print 的输出通道
+
+    Scanner、Parser、Resolver 和 Interpreter 都把错误报告给各自所属的上下文，
+    不同上下文之间没有共享的可变状态，因此多个脚本可以在同一个 JVM 中并行执行。
+ */
+public class ExecutionContext {
+
+    private final LoxOutput output;
+
+    // 为 null 时不打印，只记录到 errors 中
+    private final PrintStream err;
+
+    private final List<String> errors = new ArrayList<>();
+
+    private final ExecutionBudget budget;
+
+    // 由 LoxScheduler 调度时不为 null
+    private final Safepoint safepoint;
+
+    // 不追踪时为 null
+    private final LoxTrace trace;
+
+    // 不统计覆盖率时为 null
+    private final LoxCoverage coverage;
+
+    private boolean hadError = false;
+
+    private boolean hadRuntimeError = false;
+
+    public ExecutionContext() {
+        this(LoxOutput.stdout(), System.err);
+    }
+
+    public ExecutionContext(LoxOutput output, PrintStream err) {
+        this(output, err, ExecutionBudget.UNLIMITED);
+    }
+
+    public ExecutionContext(LoxOutput output, PrintStream err, ExecutionBudget budget) {
+        this(output, err, budget, (Safepoint) null);
+    }
+
+    /*
+        执行过程中的调用和语句记录到 trace 中
+     */
+    public ExecutionContext(LoxOutput output, PrintStream err, ExecutionBudget budget, LoxTrace trace) {
+        this(output, err, budget, trace, null);
+    }
+
+    /*
+        执行插桩过的语句时计数到 coverage 中，语句需要先用 LoxCoverage.instrument 插桩
+     */
+    public ExecutionContext(LoxOutput output, PrintStream err, ExecutionBudget budget, LoxTrace trace, LoxCoverage coverage) {
+        this(output, err, budget, null, trace, coverage);
+    }
+
+    ExecutionContext(LoxOutput output, PrintStream err, ExecutionBudget budget, Safepoint safepoint) {
+        this(output, err, budget, safepoint, null, null);
+    }
+
+    private ExecutionContext(LoxOutput output, PrintStream err, ExecutionBudget budget, Safepoint safepoint,
+                             LoxTrace trace, LoxCoverage coverage) {
+        this.output = output;
+        this.err = err;
+        this.budget = budget;
+        this.safepoint = safepoint;
+        this.trace = trace;
+        this.coverage = coverage;
+    }
+
+    public LoxOutput output() {
+        return output;
+    }
+
+    public ExecutionBudget budget() {
+        return budget;
+    }
+
+    Safepoint safepoint() {
+        return safepoint;
+    }
+
+    LoxTrace trace() {
+        return trace;
+    }
+
+    public LoxCoverage coverage() {
+        return coverage;
+    }
+
+    public boolean hadError() {
+        return hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return hadRuntimeError;
+    }
+
+    public synchronized List<String> errors() {
+        return Collections.unmodifiableList(new ArrayList<>(errors));
+    }
+
+    public synchronized void resetErrors() {
+        hadError = false;
+        hadRuntimeError = false;
+        errors.clear();
+    }
+
+    public void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    public void error(Token token, String message) {
+        if(token.tokenType == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    private void report(int line, String where, String message) {
+        hadError = true;
+        print("[line " + line + "] Error" + where + ": " + message);
+    }
+
+    /*
+        转交另一个上下文中记录的编译错误，message 已经格式化
+     */
+    void error(String message) {
+        hadError = true;
+        print(message);
+    }
+
+    public void runtimeError(RuntimeError error) {
+        hadRuntimeError = true;
+        print(error.getMessage() +
+                "\n[line " + error.token.line + "]");
+    }
+
+    private synchronized void print(String message) {
+        errors.add(message);
+        if(err == null) return;
+
+        output.flush();
+        err.println(message);
+    }
+}
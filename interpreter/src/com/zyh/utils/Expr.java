@@ -4,6 +4,21 @@ import java.util.List;
 
 public abstract class Expr {
 
+    static final int GLOBAL = -1;
+
+    static final int UPVALUE = -2;
+
+    static final int SLOT = -3;
+
+    // 变量、this、super 引用到定义所在作用域的距离，由 Resolver 填写，GLOBAL 表示在全局环境中查找，
+    // UPVALUE 表示外层函数的变量，从当前函数捕获的第 index 个值中读取，SLOT 表示当前函数栈帧的第 index 个槽位
+    int depth = GLOBAL;
+
+    int index;
+
+    // 引用的变量被闭包捕获且会被修改，环境或捕获值中保存的是 Cell
+    boolean boxed;
+
     abstract <R> R accept(Visitor<R> visitor);
 
     static class Binary extends Expr{
@@ -13,6 +28,9 @@ public abstract class Expr {
 
         final Expr right;
 
+        // 两个操作数都能证明是数字，由 TypeInference 填写
+        boolean numeric;
+
         public Binary(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
@@ -56,6 +74,9 @@ public abstract class Expr {
 
         final Token operator;
 
+        // 取负的操作数能证明是数字，由 TypeInference 填写
+        boolean numeric;
+
         public Unary(Expr right, Token operator) {
             this.right = right;
             this.operator = operator;
@@ -103,6 +124,9 @@ public abstract class Expr {
 
         final Token operator;
 
+        // 覆盖率：branch 处计左操作数直接决定结果的次数，branch + 1 处计求右操作数的次数
+        int branch = -1;
+
         public Logic(Expr left, Expr right, Token operator) {
             this.left = left;
             this.right = right;
@@ -135,13 +159,10 @@ public abstract class Expr {
     }
 
     static class AnonymousFun extends Expr{
-        final List<Token>  arguments;
-
-        final List<Stmt> body;
+        final Stmt.Function function;
 
         public AnonymousFun(List<Token> arguments, List<Stmt> body) {
-            this.arguments = arguments;
-            this.body = body;
+            this.function = new Stmt.Function(null, arguments, body);
         }
 
         @Override
@@ -185,6 +206,47 @@ public abstract class Expr {
         }
     }
 
+    static class IndexGet extends Expr{
+        final Expr object;
+
+        final Token bracket;
+
+        final Expr index;
+
+        public IndexGet(Expr object, Token bracket, Expr index) {
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexGetExpr(this);
+        }
+    }
+
+    static class IndexSet extends Expr{
+        final Expr object;
+
+        final Token bracket;
+
+        final Expr index;
+
+        final Expr value;
+
+        public IndexSet(Expr object, Token bracket, Expr index, Expr value) {
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexSetExpr(this);
+        }
+    }
+
     static class This extends Expr{
         final Token keyword;
 
@@ -198,14 +260,45 @@ public abstract class Expr {
         }
     }
 
+    /*
+        紧凑模式下替换语句中的整棵表达式树，见 CompactExpr
+     */
+    static class Compact extends Expr{
+        final CompactExpr code;
+
+        // 这棵树的节点在 code 中的范围
+        final int start;
+
+        final int end;
+
+        // 求值过程中操作数栈的最大深度，开始求值前一次性预留
+        final int maxStack;
+
+        public Compact(CompactExpr code, int start, int end, int maxStack) {
+            this.code = code;
+            this.start = start;
+            this.end = end;
+            this.maxStack = maxStack;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCompactExpr(this);
+        }
+    }
+
     static class Super extends Expr{
         final Token keyword;
 
         final Token method;
 
+        // 调用父类方法时绑定的 this，单独解析
+        final This receiver;
+
         public Super(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
+            this.receiver = new This(new Token(TokenType.THIS, "this", null, keyword.line));
         }
 
         @Override
@@ -0,0 +1,25 @@
+package com.zyh.utils;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+/*
+    冻结的全局环境
+
+    先执行一次预加载脚本（类和函数定义），再用 Interpreter.snapshot 冻结它的全局变量，
+    之后每次执行都以快照为底创建一层写时复制的覆盖环境，准备工作是 O(1) 的。
+    各次执行对全局变量的定义和赋值只写入自己的覆盖层，互不可见。
+    快照中的值本身是共享的：修改预加载脚本创建的实例、数组或 Map 对其他执行可见。
+ */
+public final class GlobalsSnapshot {
+
+    final Environment globals;
+
+    // 预加载脚本已经执行过的模块，以快照为起点的执行不再重复执行它们
+    final Set<Path> modules;
+
+    GlobalsSnapshot(Environment globals, Set<Path> modules) {
+        this.globals = globals;
+        this.modules = modules;
+    }
+}
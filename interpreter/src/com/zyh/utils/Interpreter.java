@@ -1,52 +1,223 @@
 package com.zyh.utils;
 
-import com.zyh.JLox;
-
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class Interpreter implements Visitor<Object>{
 
-    final Environment globals = new Environment();
+    final Environment globals;
 
-    public Environment environment = globals;
+    public Environment environment;
 
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // 当前执行的函数捕获的外层变量，顶层代码没有
+    Object[] upvalues = NO_UPVALUES;
 
-    public Interpreter(){
-        globals.define("clock", new JLoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+    private static final Object[] NO_UPVALUES = new Object[0];
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
+    /*
+        栈帧：每次函数调用（以及顶层代码中声明变量的块）在 stack 上占用 [fp, fp + frameSize) 这一段，结束时清空并弹出。
+        闭包只捕获值或 Cell，不会引用栈帧，所以所有函数的局部变量都可以放在这里，不需要分配 Environment。
+     */
+    private Object[] stack = new Object[256];
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    private int fp = 0;
+
+    private int sp = 0;
+
+    // 每个 Interpreter 复用同一个 Return，不为每次 return 分配异常对象
+    private final Return returnSignal = new Return();
+
+    // 每隔多少次检查读一次时钟
+    private static final int CLOCK_INTERVAL = 1024;
+
+    /*
+        执行预算的计数，每次 interpre / run 开始时重置。只在循环回边和函数调用处检查，
+        不限制的项目用一个不会耗尽的初值代替，检查时不需要额外的分支。
+     */
+    private final ExecutionBudget budget;
+
+    private long stepsLeft;
+
+    private long objectsLeft;
+
+    private long deadline;
+
+    private int clockCountdown;
+
+    private int callDepthLimit;
+
+    private int callDepth = 0;
+
+    // 调度器的让出点，fork 出的任务不参与调度
+    private final Safepoint safepoint;
+
+    private final ExecutionContext context;
+
+    private final LoxOutput output;
+
+    // 本次执行已经导入的模块，和 spawn 出的任务共享
+    private final Set<Path> modules;
+
+    // 不追踪时为 null，所有检查都先判断 LoxTrace.ENABLED，关闭追踪时被 JIT 整体消除
+    private final LoxTrace trace;
+
+    private final int traceThread;
+
+    private final boolean traceStatements;
+
+    // 不统计覆盖率时为 null
+    private final LoxCoverage coverage;
+
+    public Interpreter(ExecutionContext context){
+        this.context = context;
+        this.output = context.output();
+        this.budget = context.budget();
+        this.safepoint = context.safepoint();
+        this.modules = ConcurrentHashMap.newKeySet();
+        this.trace = context.trace();
+        this.traceThread = trace != null ? trace.thread() : 0;
+        this.traceStatements = trace != null && trace.statements();
+        this.coverage = context.coverage();
+        this.globals = new Environment();
+        this.environment = globals;
+        Natives.define(globals);
+        startBudget();
+    }
+
+    /*
+        从冻结的全局快照开始执行，只创建一层空的覆盖环境
+     */
+    public Interpreter(ExecutionContext context, GlobalsSnapshot snapshot){
+        this.context = context;
+        this.output = context.output();
+        this.budget = context.budget();
+        this.safepoint = context.safepoint();
+        this.modules = ConcurrentHashMap.newKeySet();
+        this.modules.addAll(snapshot.modules);
+        this.trace = context.trace();
+        this.traceThread = trace != null ? trace.thread() : 0;
+        this.traceStatements = trace != null && trace.statements();
+        this.coverage = context.coverage();
+        this.globals = Environment.overlay(snapshot.globals);
+        this.environment = globals;
+        startBudget();
+    }
+
+    private Interpreter(Interpreter parent){
+        this.context = parent.context;
+        this.output = parent.output;
+        this.budget = parent.budget;
+        this.safepoint = null;
+        this.modules = parent.modules;
+        this.trace = parent.trace;
+        this.traceThread = trace != null ? trace.thread() : 0;
+        this.traceStatements = parent.traceStatements;
+        this.coverage = parent.coverage;
+        this.globals = parent.globals;
+        this.environment = globals;
+        startBudget();
+    }
+
+    /*
+        spawn 使用：共享全局环境和输出，但有自己的执行状态（当前环境），可以在另一个线程中运行
+     */
+    Interpreter fork(){
+        return new Interpreter(this);
     }
 
     public void interpre(List<Stmt> statements){
+        startBudget();
         try{
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError e){
-             JLox.runtimeError(e);
+             context.runtimeError(e);
         }
     }
 
+    /*
+        流水线模式中逐条执行顶层语句，执行预算从创建解释器时开始计算，不在每条语句之前重置
+     */
+    public void interpre(Stmt statement){
+        try{
+            execute(statement);
+        } catch (RuntimeError e){
+             context.runtimeError(e);
+        }
+    }
+
+    /*
+        执行语句并返回最后一条表达式语句的值，运行时错误直接抛给调用者
+     */
+    public Object run(List<Stmt> statements){
+        startBudget();
+        Object result = null;
+        for (Stmt statement : statements) {
+            if(statement instanceof Stmt.Expression){
+                result = evaluate(((Stmt.Expression) statement).expr);
+            } else {
+                execute(statement);
+                result = null;
+            }
+        }
+        return result;
+    }
+
+    private void startBudget() {
+        stepsLeft = budget.maxSteps > 0 ? budget.maxSteps : Long.MAX_VALUE;
+        objectsLeft = budget.maxObjects > 0 ? budget.maxObjects : Long.MAX_VALUE;
+        callDepthLimit = budget.maxCallDepth > 0 ? budget.maxCallDepth : Integer.MAX_VALUE;
+        deadline = System.nanoTime() + budget.maxMillis * 1_000_000L;
+        clockCountdown = CLOCK_INTERVAL;
+    }
+
+    /*
+        循环回边和函数调用处的检查点，受调度时每隔 CLOCK_INTERVAL 次询问一次是否需要让出
+     */
+    private void poll(Token site) {
+        if (--stepsLeft < 0) {
+            throw budgetError("Step budget exceeded.", site);
+        }
+        if (--clockCountdown == 0) {
+            clockCountdown = CLOCK_INTERVAL;
+            if (budget.maxMillis > 0 && System.nanoTime() - deadline > 0) {
+                throw budgetError("Time budget exceeded.", site);
+            }
+            if (safepoint != null) safepoint.poll();
+        }
+    }
+
+    /*
+        创建实例、数组、Map 和 Channel 时计数，由调用它们的原生函数或类转换为 RuntimeError
+     */
+    void countObject() {
+        if (--objectsLeft < 0) throw new NativeError("Object budget exceeded.");
+    }
+
+    // 没有调用位置时（原生函数回调 Lox 函数）抛出 NativeError，由外层的调用表达式补上位置
+    private static RuntimeException budgetError(String message, Token site) {
+        return site != null ? new RuntimeError(message, site) : new NativeError(message);
+    }
+
     private void execute(Stmt statement) {
+        if (coverage != null && statement.counter >= 0) coverage.counts[statement.counter]++;
+        if (LoxTrace.ENABLED && traceStatements) {
+            trace.begin(traceThread, statement);
+            try {
+                statement.accept(this);
+            } finally {
+                trace.end(traceThread, statement);
+            }
+            return;
+        }
         statement.accept(this);
     }
 
-    private String stringify(Object value) {
+    static String stringify(Object value) {
         if(Objects.isNull(value))   return "nil";
 
         if(value instanceof Double){
@@ -62,38 +233,68 @@ public class Interpreter implements Visitor<Object>{
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if(expr.numeric)    return number(expr.operator, (double) evaluate(expr.left), (double) evaluate(expr.right));
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        TokenType tokenType = expr.operator.tokenType;
+        return binary(expr.operator, left, right);
+    }
+
+    /*
+        类型推断证明两个操作数都是数字时不再检查类型，结果和 binary 一致（比较和 Double.compareTo 相同）
+     */
+    private Object number(Token operator, double left, double right) {
+        switch (operator.tokenType) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            case SLASH:
+                if(right == 0)  throw new RuntimeError("divide zero error",operator);
+                return left / right;
+            case GREATER: return Double.compare(left, right) > 0;
+            case GREATER_EQUAL: return Double.compare(left, right) >= 0;
+            case LESS: return Double.compare(left, right) < 0;
+            case LESS_EQUAL: return Double.compare(left, right) <= 0;
+            case BANG_EQUAL: return Double.compare(left, right) != 0;
+            case EQUAL_EQUAL: return Double.compare(left, right) == 0;
+            default: return null;
+        }
+    }
+
+    private Object binary(Token operator, Object left, Object right) {
+        TokenType tokenType = operator.tokenType;
 
         if(tokenType == TokenType.PLUS){
-            if(left instanceof String && right instanceof String){
-                return (String)left + (String) right;
+            if(left instanceof LoxString && right instanceof LoxString){
+                if(!LoxString.canConcat((LoxString) left, (LoxString) right)){
+                    throw new RuntimeError("String too long.",operator);
+                }
+                return ((LoxString) left).concat((LoxString) right);
             } else if(left instanceof Double && right instanceof Double) {
-                checkNumberOperator(expr.operator,left,right);
+                checkNumberOperator(operator,left,right);
                 return (double)left + (double)right;
             }
         } else if(tokenType == TokenType.MINUS){
-            checkNumberOperator(expr.operator,left,right);
+            checkNumberOperator(operator,left,right);
             return (double)left - (double)right;
         } else if(tokenType == TokenType.STAR){
-            checkNumberOperator(expr.operator,left,right);
+            checkNumberOperator(operator,left,right);
             return (double)left * (double)right;
         } else if(tokenType == TokenType.SLASH){
-            checkNumberOperator(expr.operator,left,right);
-            if(((double)right) == 0)    throw new RuntimeError("divide zero error",expr.operator);
+            checkNumberOperator(operator,left,right);
+            if(((double)right) == 0)    throw new RuntimeError("divide zero error",operator);
             return (double)left / (double)right;
         } else if(tokenType == TokenType.GREATER){
-            checkCompareOperator(expr.operator,left,right);
+            checkCompareOperator(operator,left,right);
             return ((Comparable)left).compareTo((Comparable)right) > 0;
         } else if(tokenType == TokenType.GREATER_EQUAL){
-            checkCompareOperator(expr.operator,left,right);
+            checkCompareOperator(operator,left,right);
             return ((Comparable)left).compareTo((Comparable)right) >= 0;
         } else if(tokenType == TokenType.LESS){
-            checkCompareOperator(expr.operator,left,right);
+            checkCompareOperator(operator,left,right);
             return ((Comparable)left).compareTo((Comparable)right) < 0;
         } else if(tokenType == TokenType.LESS_EQUAL){
-            checkCompareOperator(expr.operator,left,right);
+            checkCompareOperator(operator,left,right);
             return ((Comparable)left).compareTo((Comparable)right) <= 0;
         } else if(tokenType == TokenType.BANG_EQUAL){
             return !isEqual(left,right);
@@ -124,7 +325,7 @@ public class Interpreter implements Visitor<Object>{
 
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr);
+        return evaluate(expr.expression);
     }
 
     private Object evaluate(Expr expr) {
@@ -138,11 +339,17 @@ public class Interpreter implements Visitor<Object>{
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if(expr.numeric)    return -(double) evaluate(expr.right);
+
         Object right = evaluate(expr.right);
-        TokenType tokenType = expr.operator.tokenType;
+        return unary(expr.operator, right);
+    }
+
+    private Object unary(Token operator, Object right) {
+        TokenType tokenType = operator.tokenType;
 
         if(tokenType == TokenType.MINUS){
-            checkNumberOperator(expr.operator,right);
+            checkNumberOperator(operator,right);
             return -(double)right;
         } else if(tokenType == TokenType.BANG){
             return !isTruth(right);
@@ -157,12 +364,17 @@ public class Interpreter implements Visitor<Object>{
     }
 
     private Object lookUpVar(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+        Object value;
+        if (expr.depth == Expr.SLOT) {
+            value = stack[fp + expr.index];
+        } else if (expr.depth >= 0) {
+            value = environment.getAt(expr.depth, name.lexeme);
+        } else if (expr.depth == Expr.UPVALUE) {
+            value = upvalues[expr.index];
         } else {
             return globals.get(name);
         }
+        return expr.boxed ? ((Cell) value).value : value;
     }
 
 
@@ -174,7 +386,7 @@ public class Interpreter implements Visitor<Object>{
     @Override
     public void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expr);
-        System.out.println(stringify(value));
+        output.println(value);
     }
 
     @Override
@@ -184,15 +396,34 @@ public class Interpreter implements Visitor<Object>{
             value = evaluate(stmt.init);
         }
 
-        environment.define(stmt.name.lexeme,value);
+        declare(stmt.slot, stmt.name.lexeme, stmt.boxed ? new Cell(value) : value);
+    }
+
+    private void declare(int slot, String name, Object value) {
+        if (slot >= 0) {
+            stack[fp + slot] = value;
+        } else {
+            environment.define(name, value);
+        }
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.boxed) {
+            Object cell;
+            if (expr.depth == Expr.SLOT) {
+                cell = stack[fp + expr.index];
+            } else if (expr.depth == Expr.UPVALUE) {
+                cell = upvalues[expr.index];
+            } else {
+                cell = environment.getAt(expr.depth, expr.name.lexeme);
+            }
+            ((Cell) cell).value = value;
+        } else if (expr.depth == Expr.SLOT) {
+            stack[fp + expr.index] = value;
+        } else if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.name, value);
         } else {
             globals.assign(expr.name, value);
         }
@@ -202,28 +433,57 @@ public class Interpreter implements Visitor<Object>{
 
     @Override
     public void visitBlockStmt(Stmt.Block block) {
-        executeBlock(block.statements, new Environment(environment));
+        if (block.frameSize == 0) {
+            for (Stmt statement : block.statements) {
+                execute(statement);
+            }
+            return;
+        }
+
+        int base = sp;
+        int top = base + block.frameSize;
+        ensureStack(top);
+
+        int previousFp = fp;
+        fp = base;
+        sp = top;
+        try {
+            for (Stmt statement : block.statements) {
+                execute(statement);
+            }
+        } finally {
+            Arrays.fill(stack, base, top, null);
+            sp = base;
+            fp = previousFp;
+        }
     }
 
     @Override
     public void visitIfStmt(Stmt.IF ifStmt) {
         Object condition = evaluate(ifStmt.condition);
         if(isTruth(condition)){
+            branch(ifStmt.branch, true);
             execute(ifStmt.thenBranch);
-        } else if(ifStmt.elseBranch != null){
-            execute(ifStmt.elseBranch);
+        } else {
+            branch(ifStmt.branch, false);
+            if(ifStmt.elseBranch != null)   execute(ifStmt.elseBranch);
         }
     }
 
+    /*
+        覆盖率的分支计数，taken 为 true 时计入 branch，否则计入 branch + 1
+     */
+    private void branch(int branch, boolean taken) {
+        if (coverage != null && branch >= 0) coverage.counts[taken ? branch : branch + 1]++;
+    }
+
     @Override
     public Object visitLogicExpr(Expr.Logic logic) {
         Object left = evaluate(logic.left);
 
-        if(logic.operator.tokenType == TokenType.OR){
-            if(isTruth(left))   return left;
-        } else {
-            if(!isTruth(left))  return left;
-        }
+        boolean shortCircuit = logic.operator.tokenType == TokenType.OR ? isTruth(left) : !isTruth(left);
+        branch(logic.branch, shortCircuit);
+        if(shortCircuit)    return left;
         return evaluate(logic.right);
     }
 
@@ -232,21 +492,25 @@ public class Interpreter implements Visitor<Object>{
         Object condition = evaluate(statement.condition);
 
         while(isTruth(condition)){
+            branch(statement.branch, true);
             try {
                 execute(statement.body);
                 if(statement.increment != null){
                     execute(statement.increment);
                 }
             } catch(LoopContral e){
-                if(e.type.tokenType == TokenType.BREAK) break;
+                // break 退出时不计入条件为假的分支
+                if(e.type.tokenType == TokenType.BREAK) return;
                 else if(e.type.tokenType == TokenType.CONTINUE){
                     if(statement.increment != null){
                         execute(statement.increment);
                     }
                 }
             }
+            poll(statement.keyword);
             condition = evaluate(statement.condition);
         }
+        branch(statement.branch, false);
     }
 
     @Override
@@ -257,29 +521,236 @@ public class Interpreter implements Visitor<Object>{
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
+        if (callee instanceof JLoxFunction) {
+            return callFunction((JLoxFunction) callee, expr);
+        }
+        if (callee instanceof LoxNative && ((LoxNative) callee).direct()) {
+            return callNative((LoxNative) callee, expr);
+        }
 
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
+        return callValue(callee, arguments, expr.paren);
+    }
 
+    /*
+        调用原生函数、类等其他可调用对象
+     */
+    private Object callValue(Object callee, List<Object> arguments, Token paren) {
         if (!(callee instanceof JLoxCallable)) {
-            throw new RuntimeError("Can only call functions and classes.", expr.paren);
+            throw new RuntimeError("Can only call functions and classes.", paren);
         }
 
         JLoxCallable function = (JLoxCallable) callee;
 
         if(arguments.size() != function.arity()){
             throw new RuntimeError("Expected " + function.arity() + " arguments but got " +
-                    arguments.size() + ".",expr.paren);
+                    arguments.size() + ".",paren);
+        }
+        try {
+            return function.call(this, arguments);
+        } catch (NativeError e) {
+            throw new RuntimeError(e.getMessage(), paren);
+        } catch (StackOverflowError e) {
+            throw new RuntimeError("Stack overflow.", paren);
+        }
+    }
+
+    /*
+        参数直接求值到新栈帧的位置上，调用 Lox 函数不分配参数列表
+     */
+    private Object callFunction(JLoxFunction function, Expr.Call expr) {
+        int base = sp;
+        try {
+            for (Expr argument : expr.arguments) {
+                Object value = evaluate(argument);
+                ensureStack(sp + 1);
+                stack[sp++] = value;
+            }
+
+            if(expr.arguments.size() != function.arity()){
+                throw new RuntimeError("Expected " + function.arity() + " arguments but got " +
+                        expr.arguments.size() + ".",expr.paren);
+            }
+        } catch (RuntimeError e) {
+            Arrays.fill(stack, base, sp, null);
+            sp = base;
+            throw e;
+        }
+
+        try {
+            return invoke(function, base, expr.paren);
+        } catch (StackOverflowError e) {
+            throw new RuntimeError("Stack overflow.", expr.paren);
+        }
+    }
+
+    /*
+        参数少的绑定方法：参数求值到局部变量中直接调用，不创建参数列表
+     */
+    private Object callNative(LoxNative function, Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        int argc = arguments.size();
+        if (argc > LoxNative.MAX_DIRECT) {
+            List<Object> values = new ArrayList<>(argc);
+            for (Expr argument : arguments) {
+                values.add(evaluate(argument));
+            }
+            return callValue(function, values, expr.paren);
+        }
+
+        Object first = argc > 0 ? evaluate(arguments.get(0)) : null;
+        Object second = argc > 1 ? evaluate(arguments.get(1)) : null;
+        Object third = argc > 2 ? evaluate(arguments.get(2)) : null;
+        return invokeNative(function, argc, first, second, third, expr.paren);
+    }
+
+    private Object invokeNative(LoxNative function, int argc, Object first, Object second, Object third, Token paren) {
+        if (argc != function.arity()) {
+            throw new RuntimeError("Expected " + function.arity() + " arguments but got " +
+                    argc + ".", paren);
+        }
+        try {
+            return function.invoke(first, second, third);
+        } catch (NativeError e) {
+            throw new RuntimeError(e.getMessage(), paren);
+        } catch (StackOverflowError e) {
+            throw new RuntimeError("Stack overflow.", paren);
+        }
+    }
+
+    int pushArguments(List<Object> arguments) {
+        int base = sp;
+        ensureStack(sp + arguments.size());
+        for (Object argument : arguments) {
+            stack[sp++] = argument;
+        }
+        return base;
+    }
+
+    /*
+        参数已经放在 stack[base] 开始的位置，在其上建立栈帧执行函数体，site 是调用位置
+     */
+    Object invoke(JLoxFunction function, int base, Token site) {
+        Stmt.Function declaration = function.funDeclara;
+        if (declaration.lazy != null) materialize(declaration, base);
+        int top = base + declaration.frameSize;
+        ensureStack(top);
+
+        boolean[] boxedParams = declaration.boxedParams;
+        for (int i = 0; i < boxedParams.length; i++) {
+            if (boxedParams[i]) stack[base + i] = new Cell(stack[base + i]);
+        }
+        if (function.receiver != null) stack[base + boxedParams.length] = function.receiver;
+
+        int previousFp = fp;
+        Object[] previousUpvalues = upvalues;
+        fp = base;
+        sp = top;
+        upvalues = function.upvalues;
+        callDepth++;
+        if (LoxTrace.ENABLED && trace != null) trace.enter(traceThread, declaration);
+
+        Object result = null;
+        try {
+            poll(site);
+            if (callDepth > callDepthLimit) {
+                throw budgetError("Call depth budget exceeded.", site);
+            }
+            for (Stmt statement : declaration.body) {
+                execute(statement);
+            }
+        } catch (Return r) {
+            result = r.value;
+        } finally {
+            Arrays.fill(stack, base, top, null);
+            sp = base;
+            fp = previousFp;
+            upvalues = previousUpvalues;
+            callDepth--;
+            if (LoxTrace.ENABLED && trace != null) trace.exit(traceThread, declaration);
+        }
+
+        return function.isInit ? function.receiver : result;
+    }
+
+    private void materialize(Stmt.Function declaration, int base) {
+        try {
+            declaration.materialize();
+        } catch (CompileError e) {
+            Arrays.fill(stack, base, sp, null);
+            sp = base;
+            throw new RuntimeError("Error in body of '" + declaration.name.lexeme + "':\n" + String.join("\n", e.errors), declaration.name);
+        }
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
         }
-        return function.call(this, arguments);
     }
 
     @Override
     public void visitFunctionStmt(Stmt.Function function) {
-        JLoxFunction fun = new JLoxFunction(function, environment,false);
-        environment.define(function.name.lexeme, fun);
+        if (function.boxed) {
+            // 函数体捕获了自己，先放好 Cell 再创建闭包
+            Cell cell = new Cell(null);
+            declare(function.slot, function.name.lexeme, cell);
+            cell.value = closure(function, false);
+        } else {
+            declare(function.slot, function.name.lexeme, closure(function, false));
+        }
+    }
+
+    /*
+        按 Resolver 算出的捕获列表复制外层变量，闭包不持有外层的环境
+     */
+    private JLoxFunction closure(Stmt.Function function, boolean isInit) {
+        Capture[] captures = function.captures;
+        Object[] values = captures.length == 0 ? NO_UPVALUES : new Object[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            Capture capture = captures[i];
+            if (capture.depth == Expr.SLOT) {
+                values[i] = stack[fp + capture.index];
+            } else if (capture.depth == Expr.UPVALUE) {
+                values[i] = upvalues[capture.index];
+            } else {
+                values[i] = environment.getAt(capture.depth, capture.name);
+            }
+        }
+        return new JLoxFunction(function, values, isInit);
+    }
+
+    /*
+        每次执行中一个模块只在第一次执行到 import 时运行一次，它的顶层声明定义在全局环境中。
+        先登记再运行，循环导入时后导入的一方直接跳过
+     */
+    @Override
+    public void visitImportStmt(Stmt.Import stmt) {
+        if(!modules.add(stmt.path))  return;
+
+        List<Stmt> statements;
+        try {
+            statements = Modules.load(stmt.path, (stmt.lazy ? Modules.LAZY : 0) | (stmt.compact ? Modules.COMPACT : 0), coverage);
+        } catch (IOException e) {
+            modules.remove(stmt.path);
+            throw new RuntimeError("Can't read module '" + stmt.path + "'.", stmt.keyword);
+        } catch (CompileError e) {
+            modules.remove(stmt.path);
+            throw new RuntimeError("Error in module '" + stmt.path + "':\n" + String.join("\n", e.errors), stmt.keyword);
+        }
+
+        Environment previous = environment;
+        environment = globals;
+        try {
+            for (Stmt statement : statements) {
+                execute(statement);
+            }
+        } finally {
+            environment = previous;
+        }
     }
 
     @Override
@@ -287,14 +758,13 @@ public class Interpreter implements Visitor<Object>{
         Object value = null;
         if(stmt.value != null)  value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnSignal.value = value;
+        throw returnSignal;
     }
 
     @Override
     public Object visitAnonymousFunExpr(Expr.AnonymousFun anonymousFun) {
-        Stmt.Function function = new Stmt.Function(null, anonymousFun.arguments, anonymousFun.body);
-        JLoxFunction fun = new JLoxFunction(function, environment,false);
-        return fun;
+        return closure(anonymousFun.function, false);
     }
 
     @Override
@@ -308,24 +778,34 @@ public class Interpreter implements Visitor<Object>{
         }
 
 
-        environment.define(stmt.name.lexeme, null);
-        if(superClass != null){
+        Cell cell = stmt.boxed ? new Cell(null) : null;
+        declare(stmt.slot, stmt.name.lexeme, cell);
+        boolean superScope = superClass != null && stmt.superSlot < 0;
+        if(superClass != null && stmt.superSlot >= 0){
+            stack[fp + stmt.superSlot] = superClass;
+        } else if(superScope){
             environment = new Environment(environment);
             environment.define("super",superClass);
         }
 
         Map<String, JLoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            JLoxFunction jLoxFunction = new JLoxFunction(method, environment,method.name.lexeme.equals("init"));
+            JLoxFunction jLoxFunction = closure(method, method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme,jLoxFunction);
         }
 
         JLoxClass klass = new JLoxClass(stmt.name.lexeme, methods, (JLoxClass) superClass);
-        if(superClass != null){
+        if(superScope){
             environment = environment.enclosing;
         }
 
-        environment.assign(stmt.name, klass);
+        if(cell != null){
+            cell.value = klass;
+        } else if(stmt.slot >= 0){
+            stack[fp + stmt.slot] = klass;
+        } else {
+            environment.assign(stmt.name, klass);
+        }
     }
 
     @Override
@@ -349,6 +829,28 @@ public class Interpreter implements Visitor<Object>{
         throw new RuntimeError("Only instances have fields.",expr.name);
     }
 
+    @Override
+    public Object visitIndexGetExpr(Expr.IndexGet expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+        if(object instanceof JLoxIndexable){
+            return ((JLoxIndexable) object).get(expr.bracket,index);
+        }
+        throw new RuntimeError("Only arrays and maps can be indexed.",expr.bracket);
+    }
+
+    @Override
+    public Object visitIndexSetExpr(Expr.IndexSet expr) {
+        Object object = evaluate(expr.object);
+        if(object instanceof JLoxIndexable){
+            Object index = evaluate(expr.index);
+            Object value = evaluate(expr.value);
+            ((JLoxIndexable) object).set(expr.bracket,index,value);
+            return value;
+        }
+        throw new RuntimeError("Only arrays and maps can be indexed.",expr.bracket);
+    }
+
     @Override
     public Object visitThisExpr(Expr.This expr) {
         return lookUpVar(expr.keyword,expr);
@@ -356,33 +858,284 @@ public class Interpreter implements Visitor<Object>{
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        JLoxClass superclass = (JLoxClass)environment.getAt(
-                distance, "super");
+        JLoxClass superclass = (JLoxClass)lookUpVar(expr.keyword, expr);
+
+        JLoxInstance object = (JLoxInstance)lookUpVar(expr.receiver.keyword, expr.receiver);
+        return superMethod(superclass, object, expr.method);
+    }
 
-        JLoxInstance object = (JLoxInstance)environment.getAt(distance - 1, "this");
-        JLoxFunction method = superclass.findMethod(expr.method.lexeme);
+    private static JLoxFunction superMethod(JLoxClass superclass, JLoxInstance object, Token name) {
+        JLoxFunction method = superclass.findMethod(name.lexeme);
 
         if (method == null) {
-            throw new RuntimeError("Undefined property '" + expr.method.lexeme + "'.",expr.method);
+            throw new RuntimeError("Undefined property '" + name.lexeme + "'.",name);
         }
         return method.bind(object);
     }
 
+    /*
+        紧凑模式的表达式求值：按顺序执行后序排列的节点，操作数栈就是解释器栈中 sp 之上的部分。
+        调用 Lox 函数时参数已经在栈上的正确位置，直接作为被调函数的栈帧
+     */
+    @Override
+    public Object visitCompactExpr(Expr.Compact expr) {
+        CompactExpr code = expr.code;
+        byte[] kinds = code.kinds;
+        int[] a = code.a;
+        int[] b = code.b;
+        Token[] tokens = code.tokens;
+
+        int start = sp;
+        ensureStack(start + expr.maxStack);
+        // 栈顶位置和栈数组放在局部变量中，只在调用前后和 sp、stack 同步
+        Object[] s = stack;
+        int top = start;
+        try {
+            for (int pc = expr.start, end = expr.end; pc < end; pc++) {
+                switch (kinds[pc]) {
+                    case CompactExpr.CONST:
+                        s[top++] = code.constants[a[pc]];
+                        break;
+                    case CompactExpr.LOAD_SLOT:
+                        s[top++] = s[fp + a[pc]];
+                        break;
+                    case CompactExpr.LOAD_SLOT_CELL:
+                        s[top++] = ((Cell) s[fp + a[pc]]).value;
+                        break;
+                    case CompactExpr.LOAD_UPVALUE:
+                        s[top++] = upvalues[a[pc]];
+                        break;
+                    case CompactExpr.LOAD_UPVALUE_CELL:
+                        s[top++] = ((Cell) upvalues[a[pc]]).value;
+                        break;
+                    case CompactExpr.LOAD_ENV:
+                        s[top++] = environment.getAt(a[pc], tokens[b[pc]].lexeme);
+                        break;
+                    case CompactExpr.LOAD_ENV_CELL:
+                        s[top++] = ((Cell) environment.getAt(a[pc], tokens[b[pc]].lexeme)).value;
+                        break;
+                    case CompactExpr.LOAD_GLOBAL:
+                        s[top++] = globals.get(tokens[b[pc]]);
+                        break;
+                    case CompactExpr.STORE_SLOT:
+                        s[fp + a[pc]] = s[top - 1];
+                        break;
+                    case CompactExpr.STORE_SLOT_CELL:
+                        ((Cell) s[fp + a[pc]]).value = s[top - 1];
+                        break;
+                    case CompactExpr.STORE_UPVALUE_CELL:
+                        ((Cell) upvalues[a[pc]]).value = s[top - 1];
+                        break;
+                    case CompactExpr.STORE_ENV:
+                        environment.assignAt(a[pc], tokens[b[pc]], s[top - 1]);
+                        break;
+                    case CompactExpr.STORE_ENV_CELL:
+                        ((Cell) environment.getAt(a[pc], tokens[b[pc]].lexeme)).value = s[top - 1];
+                        break;
+                    case CompactExpr.STORE_GLOBAL:
+                        globals.assign(tokens[b[pc]], s[top - 1]);
+                        break;
+                    case CompactExpr.ADD: {
+                        Object right = s[--top];
+                        Object left = s[top - 1];
+                        s[top - 1] = left instanceof Double && right instanceof Double
+                                ? (Object) ((double) left + (double) right) : binary(tokens[b[pc]], left, right);
+                        s[top] = null;
+                        break;
+                    }
+                    case CompactExpr.SUBTRACT: {
+                        Object right = s[--top];
+                        Object left = s[top - 1];
+                        s[top - 1] = left instanceof Double && right instanceof Double
+                                ? (Object) ((double) left - (double) right) : binary(tokens[b[pc]], left, right);
+                        s[top] = null;
+                        break;
+                    }
+                    case CompactExpr.MULTIPLY: {
+                        Object right = s[--top];
+                        Object left = s[top - 1];
+                        s[top - 1] = left instanceof Double && right instanceof Double
+                                ? (Object) ((double) left * (double) right) : binary(tokens[b[pc]], left, right);
+                        s[top] = null;
+                        break;
+                    }
+                    case CompactExpr.LESS: {
+                        Object right = s[--top];
+                        Object left = s[top - 1];
+                        s[top - 1] = left instanceof Double && right instanceof Double
+                                ? (Object) (Double.compare((double) left, (double) right) < 0) : binary(tokens[b[pc]], left, right);
+                        s[top] = null;
+                        break;
+                    }
+                    case CompactExpr.LESS_EQUAL: {
+                        Object right = s[--top];
+                        Object left = s[top - 1];
+                        s[top - 1] = left instanceof Double && right instanceof Double
+                                ? (Object) (Double.compare((double) left, (double) right) <= 0) : binary(tokens[b[pc]], left, right);
+                        s[top] = null;
+                        break;
+                    }
+                    case CompactExpr.GREATER: {
+                        Object right = s[--top];
+                        Object left = s[top - 1];
+                        s[top - 1] = left instanceof Double && right instanceof Double
+                                ? (Object) (Double.compare((double) left, (double) right) > 0) : binary(tokens[b[pc]], left, right);
+                        s[top] = null;
+                        break;
+                    }
+                    case CompactExpr.GREATER_EQUAL: {
+                        Object right = s[--top];
+                        Object left = s[top - 1];
+                        s[top - 1] = left instanceof Double && right instanceof Double
+                                ? (Object) (Double.compare((double) left, (double) right) >= 0) : binary(tokens[b[pc]], left, right);
+                        s[top] = null;
+                        break;
+                    }
+                    case CompactExpr.BINARY: {
+                        Object right = s[--top];
+                        s[top - 1] = binary(tokens[b[pc]], s[top - 1], right);
+                        s[top] = null;
+                        break;
+                    }
+                    case CompactExpr.UNARY:
+                        s[top - 1] = unary(tokens[b[pc]], s[top - 1]);
+                        break;
+                    case CompactExpr.OR:
+                        if (isTruth(s[top - 1])) {
+                            branch(b[pc], true);
+                            pc = a[pc] - 1;
+                        } else {
+                            branch(b[pc], false);
+                            s[--top] = null;
+                        }
+                        break;
+                    case CompactExpr.AND:
+                        if (!isTruth(s[top - 1])) {
+                            branch(b[pc], true);
+                            pc = a[pc] - 1;
+                        } else {
+                            branch(b[pc], false);
+                            s[--top] = null;
+                        }
+                        break;
+                    case CompactExpr.CALL:
+                        // 调用可能扩容解释器栈，前后同步局部变量
+                        sp = top;
+                        call(a[pc], tokens[b[pc]]);
+                        s = stack;
+                        top = sp;
+                        break;
+                    case CompactExpr.GET: {
+                        Object object = s[top - 1];
+                        if (!(object instanceof JLoxInstance)) {
+                            throw new RuntimeError("Only instances have properties.", tokens[b[pc]]);
+                        }
+                        s[top - 1] = ((JLoxInstance) object).get(tokens[b[pc]]);
+                        break;
+                    }
+                    case CompactExpr.CHECK_INSTANCE:
+                        if (!(s[top - 1] instanceof JLoxInstance)) {
+                            throw new RuntimeError("Only instances have fields.", tokens[b[pc]]);
+                        }
+                        break;
+                    case CompactExpr.SET: {
+                        Object value = s[--top];
+                        s[top] = null;
+                        ((JLoxInstance) s[top - 1]).set(tokens[b[pc]], value);
+                        s[top - 1] = value;
+                        break;
+                    }
+                    case CompactExpr.INDEX_GET: {
+                        Object index = s[--top];
+                        s[top] = null;
+                        Object object = s[top - 1];
+                        if (!(object instanceof JLoxIndexable)) {
+                            throw new RuntimeError("Only arrays and maps can be indexed.", tokens[b[pc]]);
+                        }
+                        s[top - 1] = ((JLoxIndexable) object).get(tokens[b[pc]], index);
+                        break;
+                    }
+                    case CompactExpr.CHECK_INDEXABLE:
+                        if (!(s[top - 1] instanceof JLoxIndexable)) {
+                            throw new RuntimeError("Only arrays and maps can be indexed.", tokens[b[pc]]);
+                        }
+                        break;
+                    case CompactExpr.INDEX_SET: {
+                        Object value = s[--top];
+                        Object index = s[--top];
+                        s[top] = null;
+                        s[top + 1] = null;
+                        ((JLoxIndexable) s[top - 1]).set(tokens[b[pc]], index, value);
+                        s[top - 1] = value;
+                        break;
+                    }
+                    case CompactExpr.SUPER: {
+                        JLoxInstance object = (JLoxInstance) s[--top];
+                        s[top] = null;
+                        s[top - 1] = superMethod((JLoxClass) s[top - 1], object, tokens[b[pc]]);
+                        break;
+                    }
+                    case CompactExpr.CLOSURE:
+                        s[top++] = closure((Stmt.Function) code.constants[a[pc]], false);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown node kind " + kinds[pc] + ".");
+                }
+            }
 
-    public void executeBlock(List<Stmt> statements, Environment environment) {
-        Environment previous = this.environment;
+            Object result = s[--top];
+            s[top] = null;
+            sp = top;
+            return result;
+        } catch (RuntimeException | Error e) {
+            Arrays.fill(stack, start, Math.min(stack.length, start + expr.maxStack), null);
+            sp = start;
+            throw e;
+        }
+    }
 
-        try {
-            this.environment = environment;
-            for (Stmt statement : statements) {
-                execute(statement);
+    /*
+        栈上依次是被调用者和 argc 个参数，调用结束后换成返回值
+     */
+    private void call(int argc, Token paren) {
+        int calleeSlot = sp - argc - 1;
+        Object callee = stack[calleeSlot];
+        Object result;
+
+        if (callee instanceof JLoxFunction) {
+            JLoxFunction function = (JLoxFunction) callee;
+            if (argc != function.arity()) {
+                throw new RuntimeError("Expected " + function.arity() + " arguments but got " +
+                        argc + ".", paren);
             }
-        } finally {
-            this.environment = previous;
+            try {
+                result = invoke(function, calleeSlot + 1, paren);
+            } catch (StackOverflowError e) {
+                throw new RuntimeError("Stack overflow.", paren);
+            }
+        } else if (callee instanceof LoxNative && ((LoxNative) callee).direct() && argc <= LoxNative.MAX_DIRECT) {
+            int args = calleeSlot + 1;
+            Object first = argc > 0 ? stack[args] : null;
+            Object second = argc > 1 ? stack[args + 1] : null;
+            Object third = argc > 2 ? stack[args + 2] : null;
+            Arrays.fill(stack, args, sp, null);
+            sp = args;
+            result = invokeNative((LoxNative) callee, argc, first, second, third, paren);
+        } else {
+            List<Object> arguments = new ArrayList<>(argc);
+            for (int i = calleeSlot + 1; i < sp; i++) {
+                arguments.add(stack[i]);
+            }
+            Arrays.fill(stack, calleeSlot + 1, sp, null);
+            sp = calleeSlot + 1;
+            result = callValue(callee, arguments, paren);
         }
+
+        stack[calleeSlot] = result;
+        sp = calleeSlot + 1;
     }
 
+
     private void checkNumberOperator(Token operator, Object right) {
         if(right instanceof Double) return;
         throw new RuntimeError("Operator must be number",operator);
@@ -394,7 +1147,18 @@ public class Interpreter implements Visitor<Object>{
         return true;
     }
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr,depth);
+    public Object getGlobal(String name) {
+        return globals.getAt(0, name);
+    }
+
+    /*
+        冻结当前的全局变量，之后这个 Interpreter 对全局变量的修改不会影响快照
+     */
+    public GlobalsSnapshot snapshot() {
+        return new GlobalsSnapshot(globals.flatten(), new HashSet<>(modules));
+    }
+
+    public void defineGlobal(String name, Object value) {
+        globals.define(name, value);
     }
 }
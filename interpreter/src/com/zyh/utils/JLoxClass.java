@@ -13,6 +13,12 @@ public class JLoxClass implements JLoxCallable{
 
     final JLoxClass superClass;
 
+    // 本类实例的初始形状
+    final Shape rootShape = new Shape();
+
+    // 目前见过的实例字段数，新实例按它分配字段数组，避免逐个添加字段时反复扩容
+    volatile int expectedFields = 0;
+
     public JLoxClass(String name, Map<String, JLoxFunction> methods, JLoxClass superClass) {
         this.name = name;
         this.methods = methods;
@@ -33,6 +39,7 @@ public class JLoxClass implements JLoxCallable{
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        interpreter.countObject();
         JLoxInstance instance = new JLoxInstance(this);
         JLoxFunction init = findMethod("init");
         if (init != null) {
@@ -42,6 +49,10 @@ public class JLoxClass implements JLoxCallable{
         return instance;
     }
 
+    void expectFields(int count) {
+        if (count > expectedFields) expectedFields = count;
+    }
+
     public JLoxFunction findMethod(String name) {
         if (methods.containsKey(name)) {
             return methods.get(name);
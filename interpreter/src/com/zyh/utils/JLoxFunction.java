@@ -5,14 +5,23 @@ import java.util.List;
 public class JLoxFunction implements JLoxCallable{
     final Stmt.Function funDeclara;
 
-    final Environment closure;
+    // 创建闭包时捕获的外层变量（值或 Cell），顺序和 funDeclara.captures 一致
+    final Object[] upvalues;
 
     final boolean isInit;
 
-    public JLoxFunction(Stmt.Function funDeclara, Environment closure, boolean isInit) {
+    // 绑定方法的 this，普通函数为 null
+    final JLoxInstance receiver;
+
+    public JLoxFunction(Stmt.Function funDeclara, Object[] upvalues, boolean isInit) {
+        this(funDeclara, upvalues, isInit, null);
+    }
+
+    private JLoxFunction(Stmt.Function funDeclara, Object[] upvalues, boolean isInit, JLoxInstance receiver) {
         this.funDeclara = funDeclara;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.isInit = isInit;
+        this.receiver = receiver;
     }
 
     @Override
@@ -22,21 +31,7 @@ public class JLoxFunction implements JLoxCallable{
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-
-        for(int i = 0;i < funDeclara.params.size();i ++){
-            environment.define(funDeclara.params.get(i).lexeme,arguments.get(i));
-        }
-
-        try {
-            interpreter.executeBlock(funDeclara.body, environment);
-        } catch (Return v){
-            if (isInit) return closure.getAt(0, "this");
-            return v.value;
-        }
-
-        if (isInit) return closure.getAt(0, "this");
-        return null;
+        return interpreter.invoke(this, interpreter.pushArguments(arguments), null);
     }
 
     @Override
@@ -45,8 +40,6 @@ public class JLoxFunction implements JLoxCallable{
     }
 
     public JLoxFunction bind(JLoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new JLoxFunction(funDeclara, environment,isInit);
+        return new JLoxFunction(funDeclara, upvalues, isInit, instance);
     }
 }
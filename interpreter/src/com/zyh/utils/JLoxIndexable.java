@@ -0,0 +1,10 @@
+package com.zyh.utils;
+
+public interface JLoxIndexable {
+
+    Object get(Token bracket, Object index);
+
+    void set(Token bracket, Object index, Object value);
+
+    int length();
+}
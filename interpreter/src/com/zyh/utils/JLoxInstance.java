@@ -1,15 +1,26 @@
 package com.zyh.utils;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class JLoxInstance {
+
+    private static final Object[] NO_FIELDS = new Object[0];
+
     final JLoxClass jLoxClass;
 
-    final Map<String, Object> fields = new HashMap<>();
+    /*
+        字段按形状中的下标保存在 values 中，数组长度可以大于形状的字段数
+
+        实例可能被多个任务共享：添加字段时在锁内先换 values 再换 shape，
+        读取时先读 shape 再读 values，读到的数组一定能容纳形状中的所有字段。
+     */
+    private volatile Shape shape;
+
+    private volatile Object[] values;
 
     public JLoxInstance(JLoxClass jLoxClass) {
         this.jLoxClass = jLoxClass;
+        this.shape = jLoxClass.rootShape;
+        int expected = jLoxClass.expectedFields;
+        this.values = expected == 0 ? NO_FIELDS : new Object[expected];
     }
 
     @Override
@@ -18,8 +29,9 @@ public class JLoxInstance {
     }
 
     public Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int index = shape.indexOf(name.lexeme);
+        if (index >= 0) {
+            return values[index];
         }
 
         JLoxFunction method = jLoxClass.findMethod(name.lexeme);
@@ -29,6 +41,36 @@ public class JLoxInstance {
     }
 
     public void set(Token name, Object value) {
-        fields.put(name.lexeme,value);
+        int index = shape.indexOf(name.lexeme);
+        if (index >= 0) {
+            Object[] current = values;
+            current[index] = value;
+            // 写入期间数组被其他任务扩容，旧数组上的写入可能没有被复制过去
+            if (current == values) return;
+        }
+
+        addField(name.lexeme, value);
+    }
+
+    private synchronized void addField(String name, Object value) {
+        Shape current = shape;
+        int index = current.indexOf(name);
+        if (index >= 0) {
+            values[index] = value;
+            return;
+        }
+
+        Shape next = current.with(name);
+        Object[] fields = values;
+        if (next.size > fields.length) {
+            Object[] grown = new Object[Math.max(next.size, fields.length * 2)];
+            System.arraycopy(fields, 0, grown, 0, current.size);
+            fields = grown;
+        }
+        fields[current.size] = value;
+
+        values = fields;
+        shape = next;
+        jLoxClass.expectFields(next.size);
     }
 }
@@ -0,0 +1,69 @@
+package com.zyh.utils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    延迟解析的函数体
+
+    加载时只按花括号配对跳过函数体，记下它在词法单元列表中的范围；第一次调用时才解析函数体并做作用域解析。
+    只有顶层函数和没有父类的顶层类的方法会延迟解析：它们没有需要在创建闭包时捕获的外层局部变量，
+    函数体中的自由变量都是全局变量，所以单独解析函数体得到的结果和整体解析一致。
+    函数体中的语法错误推迟到第一次调用时才报告。
+ */
+final class LazyBody {
+
+    private final List<Token> tokens;
+
+    // 函数体在 tokens 中的范围，不含两侧的花括号
+    private final int start;
+
+    private final int end;
+
+    private final Path directory;
+
+    private final boolean method;
+
+    // 紧凑模式下由 Compactor 设置，函数体解析之后同样展开
+    boolean compact;
+
+    // 统计覆盖率时由 LoxCoverage 设置，函数体解析之后同样插桩
+    LoxCoverage coverage;
+
+    String coverageFile;
+
+    LazyBody(List<Token> tokens, int start, int end, Path directory, boolean method) {
+        this.tokens = tokens;
+        this.start = start;
+        this.end = end;
+        this.directory = directory;
+        this.method = method;
+    }
+
+    /*
+        解析并解析作用域，结果写回 function；出错时抛出 CompileError，function 保持未解析的状态
+     */
+    void compile(Stmt.Function function) {
+        ExecutionContext context = new ExecutionContext(LoxOutput.stdout(), null);
+
+        List<Token> body = new ArrayList<>(tokens.subList(start, end));
+        body.add(new Token(TokenType.EOF, "", null, tokens.get(end).line));
+
+        List<Stmt> statements = new Parser(body, context, directory).parse();
+        if (!context.hadError()) {
+            new Resolver(context).resolveBody(function, statements, method);
+        }
+
+        if (context.hadError()) {
+            throw new CompileError(new ArrayList<>(context.errors()));
+        }
+        new TypeInference().inferBody(function);
+        if (coverage != null) {
+            coverage.instrumentBody(coverageFile, function);
+        }
+        if (compact) {
+            new Compactor().compact(statements);
+        }
+    }
+}
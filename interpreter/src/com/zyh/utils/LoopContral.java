@@ -4,6 +4,8 @@ public class LoopContral extends RuntimeException{
     final Token type;
 
     public LoopContral(Token type) {
+        // break、continue 的控制流信号，不记录调用栈
+        super(null, null, false, false);
         this.type = type;
     }
 
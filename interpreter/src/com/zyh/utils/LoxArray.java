@@ -0,0 +1,58 @@
+package com.zyh.utils;
+
+/*
+    Array(n)：定长的对象数组，元素初始为 nil
+ */
+public class LoxArray implements JLoxIndexable{
+
+    final Object[] elements;
+
+    public LoxArray(int length) {
+        this.elements = new Object[length];
+    }
+
+    LoxArray(Object[] elements) {
+        this.elements = elements;
+    }
+
+    @Override
+    public Object get(Token bracket, Object index) {
+        return elements[checkIndex(bracket, index, elements.length)];
+    }
+
+    @Override
+    public void set(Token bracket, Object index, Object value) {
+        elements[checkIndex(bracket, index, elements.length)] = value;
+    }
+
+    @Override
+    public int length() {
+        return elements.length;
+    }
+
+    static int checkIndex(Token bracket, Object index, int length) {
+        if (!(index instanceof Double)) {
+            throw new RuntimeError("Array index must be a number.", bracket);
+        }
+
+        double value = (Double) index;
+        int i = (int) value;
+        if (i != value) {
+            throw new RuntimeError("Array index must be an integer.", bracket);
+        }
+        if (i < 0 || i >= length) {
+            throw new RuntimeError("Array index " + i + " out of bounds for length " + length + ".", bracket);
+        }
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < elements.length; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(elements[i] == this ? "[...]" : Interpreter.stringify(elements[i]));
+        }
+        return builder.append("]").toString();
+    }
+}
@@ -0,0 +1,43 @@
+package com.zyh.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+/*
+    任务之间传递值的有界通道
+
+    send 在通道满时阻塞，receive 在通道空时阻塞；容量为 0 时 send 要等到有任务 receive 才返回。
+    send 之前的写入对 receive 到该值的任务可见，数组和 Map 不是线程安全的，应通过通道交接后再使用。
+ */
+public class LoxChannel {
+
+    private final BlockingQueue<Object> queue;
+
+    LoxChannel(int capacity) {
+        this.queue = capacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(capacity);
+    }
+
+    void send(Object value) {
+        try {
+            queue.put(Environment.wrap(value));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while sending to a channel.");
+        }
+    }
+
+    Object receive() {
+        try {
+            return Environment.unwrap(queue.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while receiving from a channel.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
@@ -0,0 +1,355 @@
+package com.zyh.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    语句和分支覆盖率
+
+    instrument 在作用域解析之后给每条语句分配一个计数器，给 if、while 和 and / or 各分配两个分支计数器，
+    下标记在语法树节点上；解释器执行到时把 counts 中对应的元素加一，不做其他查找。
+    所有计数器放在一个 long 数组中，插桩新的代码（模块、延迟解析的函数体、REPL 的每一行）时按需扩容。
+    spawn 出的任务并发执行时计数不加锁，可能少计，扩容的瞬间其他线程的计数也可能丢失。
+
+    write 输出 LCOV 格式（genhtml 等工具可以直接读取）：DA 是每行的执行次数（同一行有多条语句时取最大值），
+    BRDA 是每个分支的次数，执行次数为 0 的行就是没有执行过的代码。
+ */
+public final class LoxCoverage {
+
+    // 计数器，下标由 instrument 分配
+    volatile long[] counts = new long[1024];
+
+    private int size = 0;
+
+    // 每个计数器所在的文件和行，分支计数器的 branches 为 true
+    private int[] files = new int[1024];
+
+    private int[] lines = new int[1024];
+
+    private boolean[] branches = new boolean[1024];
+
+    private final List<String> fileNames = new ArrayList<>();
+
+    // 插桩过的模块，只在本次统计中共用，不放进进程共享的模块缓存，见 Modules.load
+    private final Map<String, List<Stmt>> modules = new ConcurrentHashMap<>();
+
+    /*
+        给 file 中解析好的语句插桩，file 只用于报告
+     */
+    public synchronized void instrument(String file, List<Stmt> statements) {
+        new Instrumenter(file(file), 0).statements(statements);
+    }
+
+    /*
+        延迟解析的函数体在解析之后插桩
+     */
+    synchronized void instrumentBody(String file, Stmt.Function function) {
+        new Instrumenter(file(file), function.name.line).statements(function.body);
+    }
+
+    List<Stmt> module(Path path, int mode, ModuleCompiler compiler) {
+        return modules.computeIfAbsent(mode + ":" + path, key -> compiler.compile());
+    }
+
+    interface ModuleCompiler {
+        List<Stmt> compile();
+    }
+
+    private int file(String name) {
+        int index = fileNames.indexOf(name);
+        if (index >= 0) return index;
+        fileNames.add(name);
+        return fileNames.size() - 1;
+    }
+
+    private int allocate(int file, int line, boolean branch) {
+        if (size == files.length) {
+            int length = size * 2;
+            files = Arrays.copyOf(files, length);
+            lines = Arrays.copyOf(lines, length);
+            branches = Arrays.copyOf(branches, length);
+        }
+        if (size == counts.length) counts = Arrays.copyOf(counts, size * 2);
+        files[size] = file;
+        lines[size] = line;
+        branches[size] = branch;
+        return size++;
+    }
+
+    public void write(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            write(writer);
+        }
+    }
+
+    public synchronized void write(Writer out) throws IOException {
+        BufferedWriter writer = out instanceof BufferedWriter ? (BufferedWriter) out : new BufferedWriter(out);
+        long[] counts = this.counts;
+
+        for (int file = 0; file < fileNames.size(); file++) {
+            // 行号到这一行语句的最大执行次数，以及这一行的分支计数器
+            TreeMap<Integer, Long> hits = new TreeMap<>();
+            TreeMap<Integer, List<Integer>> branchCounters = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                if (files[i] != file) continue;
+                if (branches[i]) {
+                    branchCounters.computeIfAbsent(lines[i], key -> new ArrayList<>()).add(i);
+                } else {
+                    hits.merge(lines[i], counts[i], Math::max);
+                }
+            }
+
+            writer.write("TN:\nSF:" + fileNames.get(file) + "\n");
+            int found = 0;
+            int hit = 0;
+            for (Map.Entry<Integer, List<Integer>> entry : branchCounters.entrySet()) {
+                List<Integer> counters = entry.getValue();
+                for (int i = 0; i < counters.size(); i++) {
+                    long count = counts[counters.get(i)];
+                    // 同一行的分支两两成对，每对是一个判断
+                    writer.write("BRDA:" + entry.getKey() + "," + i / 2 + "," + i % 2 + "," + count + "\n");
+                    found++;
+                    if (count > 0) hit++;
+                }
+            }
+            writer.write("BRF:" + found + "\nBRH:" + hit + "\n");
+
+            hit = 0;
+            for (Map.Entry<Integer, Long> entry : hits.entrySet()) {
+                writer.write("DA:" + entry.getKey() + "," + entry.getValue() + "\n");
+                if (entry.getValue() > 0) hit++;
+            }
+            writer.write("LF:" + hits.size() + "\nLH:" + hit + "\nend_of_record\n");
+        }
+        writer.flush();
+    }
+
+    /*
+        遍历一段语法树分配计数器。没有行号的语句（for 循环展开出的语句、类中的方法）使用外层语句的行号
+     */
+    private final class Instrumenter implements Visitor<Void> {
+
+        private final int file;
+
+        private int line;
+
+        Instrumenter(int file, int line) {
+            this.file = file;
+            this.line = line;
+        }
+
+        void statements(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement(statement);
+            }
+        }
+
+        private void statement(Stmt statement) {
+            if (statement == null) return;
+            int enclosing = line;
+            if (statement.line > 0) line = statement.line;
+            statement.counter = allocate(file, line, false);
+            statement.accept(this);
+            line = enclosing;
+        }
+
+        private void expression(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private int branch() {
+            int branch = allocate(file, line, true);
+            allocate(file, line, true);
+            return branch;
+        }
+
+        private void function(Stmt.Function function) {
+            // 延迟解析的函数体在第一次调用时插桩
+            if (function.lazy != null) {
+                function.lazy.coverage = LoxCoverage.this;
+                function.lazy.coverageFile = fileNames.get(file);
+                return;
+            }
+            int enclosing = line;
+            line = function.name.line;
+            statements(function.body);
+            line = enclosing;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVarExpr(Expr.Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicExpr(Expr.Logic logic) {
+            expression(logic.left);
+            int enclosing = line;
+            line = logic.operator.line;
+            logic.branch = branch();
+            line = enclosing;
+            expression(logic.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expression(expr.callee);
+            for (Expr argument : expr.arguments) {
+                expression(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitAnonymousFunExpr(Expr.AnonymousFun anonymousFun) {
+            function(anonymousFun.function);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            expression(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            expression(expr.object);
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexGetExpr(Expr.IndexGet expr) {
+            expression(expr.object);
+            expression(expr.index);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexSetExpr(Expr.IndexSet expr) {
+            expression(expr.object);
+            expression(expr.index);
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitCompactExpr(Expr.Compact expr) {
+            // 插桩在紧凑化之前进行，这里不会遇到
+            return null;
+        }
+
+        @Override
+        public void visitExpressionStmt(Stmt.Expression stmt) {
+            expression(stmt.expr);
+        }
+
+        @Override
+        public void visitPrintStmt(Stmt.Print stmt) {
+            expression(stmt.expr);
+        }
+
+        @Override
+        public void visitVarStmt(Stmt.Var stmt) {
+            expression(stmt.init);
+        }
+
+        @Override
+        public void visitBlockStmt(Stmt.Block block) {
+            statements(block.statements);
+        }
+
+        @Override
+        public void visitIfStmt(Stmt.IF stmt) {
+            expression(stmt.condition);
+            stmt.branch = branch();
+            statement(stmt.thenBranch);
+            statement(stmt.elseBranch);
+        }
+
+        @Override
+        public void visitWhileStmt(Stmt.WHILE stmt) {
+            expression(stmt.condition);
+            stmt.branch = branch();
+            statement(stmt.body);
+            statement(stmt.increment);
+        }
+
+        @Override
+        public void visitLoopContral(Stmt.LOOPCONTRAL loopcontral) {
+        }
+
+        @Override
+        public void visitFunctionStmt(Stmt.Function function) {
+            function(function);
+        }
+
+        @Override
+        public void visitReturnStmt(Stmt.Return stmt) {
+            expression(stmt.value);
+        }
+
+        @Override
+        public void visitImportStmt(Stmt.Import stmt) {
+        }
+
+        @Override
+        public void visitClassStmt(Stmt.Class stmt) {
+            for (Stmt.Function method : stmt.methods) {
+                function(method);
+            }
+        }
+    }
+}
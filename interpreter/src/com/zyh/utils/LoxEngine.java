@@ -0,0 +1,93 @@
+package com.zyh.utils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    在 Java 中嵌入 Lox 的入口
+
+    compile 只做一次扫描、解析和作用域解析，得到的 Script 不依赖任何 Interpreter，
+    可以在多个线程中反复执行，每次执行都有自己的全局环境。
+
+        LoxEngine engine = new LoxEngine();
+        Script script = engine.compile("fun add(a, b) { return a + b; } add(x, 2);");
+        Object result = script.execute(Collections.singletonMap("x", 1));   // 3.0
+ */
+public final class LoxEngine {
+
+    // 为 true 时顶层函数和方法的函数体在第一次调用时才解析，见 LazyBody
+    private final boolean lazy;
+
+    // 为 true 时表达式展开成 CompactExpr 求值，见 Compactor
+    private final boolean compact;
+
+    public LoxEngine() {
+        this(false);
+    }
+
+    public LoxEngine(boolean lazy) {
+        this(lazy, false);
+    }
+
+    public LoxEngine(boolean lazy, boolean compact) {
+        this.lazy = lazy;
+        this.compact = compact;
+    }
+
+    public Script compile(String source) {
+        return compile(source, null);
+    }
+
+    /*
+        脚本中 import 的相对路径以 directory 为基准，为 null 时相对于当前工作目录
+     */
+    public Script compile(String source, Path directory) {
+        List<Stmt> statements = compileStatements(source, directory, lazy);
+        if (compact) new Compactor().compact(statements);
+        return new Script(statements);
+    }
+
+    /*
+        编译脚本文件，import 相对于文件所在的目录。结果和 import 的模块共用整个进程的缓存（见 Modules），
+        多次加载同一个文件只编译一次，文件修改后重新编译
+     */
+    public Script load(Path path) throws IOException {
+        int mode = (lazy ? Modules.LAZY : 0) | (compact ? Modules.COMPACT : 0);
+        return new Script(Modules.load(path.toAbsolutePath().normalize(), mode, null));
+    }
+
+    static List<Stmt> compileStatements(String source, Path directory, boolean lazy) {
+        ExecutionContext context = new ExecutionContext(LoxOutput.stdout(), null);
+
+        List<Token> tokens = new Scanner(source, context).scanTokens();
+        List<Stmt> statements = new Parser(tokens, context, directory, lazy).parse();
+        if (!context.hadError()) {
+            new Resolver(context).resolve(statements);
+        }
+
+        if (context.hadError()) {
+            throw new CompileError(new ArrayList<>(context.errors()));
+        }
+        new TypeInference().infer(statements);
+        return statements;
+    }
+
+    /*
+        Java 值转换为 Lox 值：字符串转为 LoxString，数字统一转为 double，Lox 自身的值原样传入
+     */
+    static Object toLox(Object value) {
+        if (value == null || value instanceof Boolean || value instanceof Double) return value;
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value instanceof CharSequence || value instanceof Character) return new LoxString(value.toString());
+        if (value instanceof JLoxCallable || value instanceof JLoxIndexable || value instanceof JLoxInstance) return value;
+
+        throw new IllegalArgumentException("Can't convert " + value.getClass().getName() + " to a Lox value.");
+    }
+
+    static Object toJava(Object value) {
+        if (value instanceof LoxString) return value.toString();
+        return value;
+    }
+}
@@ -0,0 +1,155 @@
+package com.zyh.utils;
+
+/*
+    Map()：开放寻址（线性探测）的哈希表，键和值分别存放在两个数组中，
+    删除时把后续元素向前移动，不需要墓碑标记。不存在的键读出为 nil。
+ */
+public class LoxMap implements JLoxIndexable{
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+
+    private Object[] values = new Object[INITIAL_CAPACITY];
+
+    private int size = 0;
+
+    @Override
+    public Object get(Token bracket, Object key) {
+        checkKey(bracket, key);
+        return get(key);
+    }
+
+    @Override
+    public void set(Token bracket, Object key, Object value) {
+        checkKey(bracket, key);
+        put(key, value);
+    }
+
+    @Override
+    public int length() {
+        return size;
+    }
+
+    private static void checkKey(Token bracket, Object key) {
+        if (key == null) throw new RuntimeError("Map key can't be nil.", bracket);
+    }
+
+    Object get(Object key) {
+        int slot = find(key);
+        return slot >= 0 ? values[slot] : null;
+    }
+
+    boolean containsKey(Object key) {
+        return key != null && find(key) >= 0;
+    }
+
+    void put(Object key, Object value) {
+        int slot = find(key);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+
+        // 装载因子保持在 2/3 以下，保证探测序列足够短
+        if ((size + 1) * 3 > keys.length * 2) {
+            resize();
+            slot = find(key);
+        }
+
+        slot = -slot - 1;
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    Object remove(Object key) {
+        if (key == null) return null;
+
+        int slot = find(key);
+        if (slot < 0) return null;
+
+        Object value = values[slot];
+        int mask = keys.length - 1;
+        int hole = slot;
+        int i = (hole + 1) & mask;
+
+        // 把探测链上能前移到空位的元素依次前移
+        while (keys[i] != null) {
+            int ideal = hash(keys[i]) & mask;
+            if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[hole] = null;
+        values[hole] = null;
+        size--;
+        return value;
+    }
+
+    LoxArray keys() {
+        Object[] result = new Object[size];
+        int n = 0;
+        for (Object key : keys) {
+            if (key != null) result[n++] = key;
+        }
+        return new LoxArray(result);
+    }
+
+    /*
+        找到键所在的位置；不存在时返回 -(可插入位置) - 1
+     */
+    private int find(Object key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+
+        while (true) {
+            Object current = keys[i];
+            if (current == null) return -i - 1;
+            if (current == key || current.equals(key)) return i;
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+
+    private void resize() {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new Object[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) continue;
+
+            int i = hash(oldKeys[j]) & mask;
+            while (keys[i] != null) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        boolean first = true;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) continue;
+            if (!first) builder.append(", ");
+            first = false;
+            builder.append(Interpreter.stringify(keys[i])).append(": ")
+                    .append(values[i] == this ? "{...}" : Interpreter.stringify(values[i]));
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,235 @@
+package com.zyh.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    把 Java 静态方法绑定为 Lox 原生函数
+
+        script.execute(Collections.singletonMap("hypot", LoxNative.of(Math.class, "hypot")));
+
+    参数个数和每个参数、返回值的转换在绑定时由方法签名一次性确定，组合进一个 MethodHandle，
+    调用时不再做反射，也不需要逐个判断类型。不超过 MAX_DIRECT 个参数的函数由解释器直接调用 invoke，
+    不创建参数列表；参数更多时通过 call 展开参数列表调用。
+
+    参数：double、float、long、int 要求数字（整数类型还要求是范围内的整数），boolean 要求布尔值，
+    String、CharSequence 要求字符串，Object 接收任意值（字符串转为 String），其他类型要求是该类型的 Lox 值。
+    返回值按 LoxEngine.toLox 转换，void 返回 nil。类型不符和 Java 方法抛出的异常都报告为调用处的运行时错误。
+    绑定结果不可变，可以在多个脚本、多个线程之间共享。
+ */
+public final class LoxNative extends NativeFunction {
+
+    static final int MAX_DIRECT = 3;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodHandle TO_DOUBLE = find("toDouble", double.class);
+    private static final MethodHandle TO_FLOAT = find("toFloat", float.class);
+    private static final MethodHandle TO_LONG = find("toLong", long.class);
+    private static final MethodHandle TO_INT = find("toInt", int.class);
+    private static final MethodHandle TO_BOOLEAN = find("toBoolean", boolean.class);
+    private static final MethodHandle TO_STRING = find("toText", String.class);
+    private static final MethodHandle TO_OBJECT = find("toObject", Object.class);
+    private static final MethodHandle TO_TYPE = find("toType", Object.class, Class.class);
+    private static final MethodHandle TO_LOX;
+
+    static {
+        try {
+            TO_LOX = LOOKUP.findStatic(LoxEngine.class, "toLox", MethodType.methodType(Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String name;
+
+    // 参数不超过 MAX_DIRECT 个时是 (Object, Object, Object)Object，多余的参数被忽略；否则为 null
+    private final MethodHandle direct;
+
+    // (Object[])Object
+    private final MethodHandle spread;
+
+    private LoxNative(String name, MethodHandle handle) {
+        super(handle.type().parameterCount());
+        this.name = name;
+
+        MethodHandle adapted = adapt(name, handle);
+        int arity = arity();
+        this.spread = adapted.asSpreader(Object[].class, arity);
+        this.direct = arity <= MAX_DIRECT
+                ? MethodHandles.dropArguments(adapted, arity, Collections.nCopies(MAX_DIRECT - arity, Object.class))
+                : null;
+    }
+
+    /*
+        绑定一个静态方法，Lox 中的函数名和方法名相同
+     */
+    public static LoxNative of(Method method) {
+        if (!Modifier.isStatic(method.getModifiers())) {
+            throw new IllegalArgumentException(method + " is not static.");
+        }
+        try {
+            if (!method.canAccess(null)) method.setAccessible(true);
+            return new LoxNative(method.getName(), LOOKUP.unreflect(method));
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new IllegalArgumentException("Can't bind " + method + ".", e);
+        }
+    }
+
+    /*
+        绑定 owner 中名为 name 的静态方法，这个名字必须只有一个静态方法
+     */
+    public static LoxNative of(Class<?> owner, String name) {
+        Method found = null;
+        for (Method method : owner.getDeclaredMethods()) {
+            if (!method.getName().equals(name) || !Modifier.isStatic(method.getModifiers())) continue;
+            if (found != null) {
+                throw new IllegalArgumentException(owner.getName() + "." + name + " is overloaded, bind a Method instead.");
+            }
+            found = method;
+        }
+        if (found == null) throw new IllegalArgumentException("No static method " + owner.getName() + "." + name + ".");
+        return of(found);
+    }
+
+    /*
+        绑定任意 MethodHandle（比如用调用方自己的 Lookup 找到的私有方法），参数和返回值的转换规则相同
+     */
+    public static LoxNative of(String name, MethodHandle handle) {
+        return new LoxNative(name, handle);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        if (direct != null) {
+            int size = arguments.size();
+            return invoke(size > 0 ? arguments.get(0) : null, size > 1 ? arguments.get(1) : null, size > 2 ? arguments.get(2) : null);
+        }
+        try {
+            return spread.invokeExact(arguments.toArray());
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    /*
+        解释器的直接调用路径，调用前已经检查过参数个数，用不到的参数传 null
+     */
+    Object invoke(Object first, Object second, Object third) {
+        try {
+            return (Object) direct.invokeExact(first, second, third);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    boolean direct() {
+        return direct != null;
+    }
+
+    private RuntimeException failure(Throwable e) {
+        if (e instanceof NativeError || e instanceof RuntimeError) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        return new NativeError(name + "(): " + message);
+    }
+
+    /*
+        转换成 (Object...)Object：每个参数前面接上转换，返回值后面接上 toLox
+     */
+    private static MethodHandle adapt(String name, MethodHandle handle) {
+        MethodType type = handle.type();
+        MethodHandle[] filters = new MethodHandle[type.parameterCount()];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = MethodHandles.insertArguments(converter(type.parameterType(i)), 0, name, i + 1);
+        }
+        MethodHandle adapted = MethodHandles.filterArguments(handle, 0, filters);
+
+        // void 在最后的 asType 中变成 null，double 和 boolean 装箱后已经是 Lox 值
+        Class<?> returnType = type.returnType();
+        if (returnType != void.class && returnType != double.class && returnType != boolean.class) {
+            adapted = MethodHandles.filterReturnValue(adapted.asType(adapted.type().changeReturnType(Object.class)), TO_LOX);
+        }
+        return adapted.asType(MethodType.genericMethodType(filters.length));
+    }
+
+    private static MethodHandle converter(Class<?> type) {
+        if (type == double.class || type == Double.class) return TO_DOUBLE.asType(TO_DOUBLE.type().changeReturnType(type));
+        if (type == float.class || type == Float.class) return TO_FLOAT.asType(TO_FLOAT.type().changeReturnType(type));
+        if (type == long.class || type == Long.class) return TO_LONG.asType(TO_LONG.type().changeReturnType(type));
+        if (type == int.class || type == Integer.class) return TO_INT.asType(TO_INT.type().changeReturnType(type));
+        if (type == boolean.class || type == Boolean.class) return TO_BOOLEAN.asType(TO_BOOLEAN.type().changeReturnType(type));
+        if (type == String.class || type == CharSequence.class) return TO_STRING.asType(TO_STRING.type().changeReturnType(type));
+        if (type == Object.class) return TO_OBJECT;
+        if (type.isPrimitive()) throw new IllegalArgumentException("Unsupported parameter type " + type + ".");
+
+        MethodHandle cast = MethodHandles.insertArguments(TO_TYPE, 3, type);
+        return cast.asType(cast.type().changeReturnType(type));
+    }
+
+    private static MethodHandle find(String name, Class<?> returnType, Class<?>... extra) {
+        MethodType type = MethodType.methodType(returnType, String.class, int.class, Object.class).appendParameterTypes(extra);
+        try {
+            return LOOKUP.findStatic(LoxNative.class, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static NativeError mismatch(String function, int position, String expected) {
+        return new NativeError("Argument " + position + " of " + function + "() must be " + expected + ".");
+    }
+
+    private static double toDouble(String function, int position, Object value) {
+        if (value instanceof Double) return (double) value;
+        throw mismatch(function, position, "a number");
+    }
+
+    private static float toFloat(String function, int position, Object value) {
+        return (float) toDouble(function, position, value);
+    }
+
+    private static long toLong(String function, int position, Object value) {
+        double number = toDouble(function, position, value);
+        if (number != Math.rint(number) || number < Long.MIN_VALUE || number >= 0x1p63) {
+            throw mismatch(function, position, "an integer");
+        }
+        return (long) number;
+    }
+
+    private static int toInt(String function, int position, Object value) {
+        double number = toDouble(function, position, value);
+        if (number != Math.rint(number) || number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+            throw mismatch(function, position, "an integer");
+        }
+        return (int) number;
+    }
+
+    private static boolean toBoolean(String function, int position, Object value) {
+        if (value instanceof Boolean) return (boolean) value;
+        throw mismatch(function, position, "a boolean");
+    }
+
+    private static String toText(String function, int position, Object value) {
+        if (value instanceof LoxString) return value.toString();
+        throw mismatch(function, position, "a string");
+    }
+
+    private static Object toObject(String function, int position, Object value) {
+        return LoxEngine.toJava(value);
+    }
+
+    private static Object toType(String function, int position, Object value, Class<?> type) {
+        if (type.isInstance(value)) return value;
+        throw mismatch(function, position, "a " + type.getSimpleName());
+    }
+}
@@ -0,0 +1,42 @@
+package com.zyh.utils;
+
+/*
+    NumberArray(n)：以 double[] 存储的数字数组，元素初始为 0，存储时不装箱
+ */
+public class LoxNumberArray implements JLoxIndexable{
+
+    final double[] elements;
+
+    public LoxNumberArray(int length) {
+        this.elements = new double[length];
+    }
+
+    @Override
+    public Object get(Token bracket, Object index) {
+        return elements[LoxArray.checkIndex(bracket, index, elements.length)];
+    }
+
+    @Override
+    public void set(Token bracket, Object index, Object value) {
+        int i = LoxArray.checkIndex(bracket, index, elements.length);
+        if (!(value instanceof Double)) {
+            throw new RuntimeError("NumberArray elements must be numbers.", bracket);
+        }
+        elements[i] = (Double) value;
+    }
+
+    @Override
+    public int length() {
+        return elements.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < elements.length; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(Interpreter.stringify(elements[i]));
+        }
+        return builder.append("]").toString();
+    }
+}
@@ -0,0 +1,171 @@
+package com.zyh.utils;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/*
+    print 语句的输出通道
+
+    所有输出先以 UTF-8 编码写入一块大缓冲区，缓冲区满、程序退出、报错以及 REPL 提示符之前才真正写出，
+    避免每条 print 都做一次同步的流写入。数字直接格式化到缓冲区中，不产生中间字符串。
+    spawn 出的任务共享同一个输出，公开方法都加锁，每条 print 的内容不会互相穿插。
+ */
+public class LoxOutput {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // 绝对值小于该值的整数，Double.toString 会输出为 "123.0" 的形式，stringify 再去掉 ".0"
+    private static final double PLAIN_INTEGER_LIMIT = 1e7;
+
+    private final OutputStream out;
+
+    // 标准输出只刷新不关闭
+    private final boolean closeable;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int count = 0;
+
+    // 整数转换时逆序存放数字的临时空间
+    private final byte[] digits = new byte[20];
+
+    public LoxOutput(OutputStream out) {
+        this(out, true);
+    }
+
+    private LoxOutput(OutputStream out, boolean closeable) {
+        this.out = out;
+        this.closeable = closeable;
+    }
+
+    /*
+        每次返回一个独立缓冲的标准输出通道，各个执行之间互不干扰
+     */
+    public static LoxOutput stdout() {
+        return new LoxOutput(new FileOutputStream(FileDescriptor.out), false);
+    }
+
+    public static LoxOutput file(String path) throws IOException {
+        return new LoxOutput(new FileOutputStream(path));
+    }
+
+    public synchronized void println(Object value) {
+        print(value);
+        write((byte) '\n');
+    }
+
+    public synchronized void print(Object value) {
+        if (value == null) {
+            writeAscii("nil");
+        } else if (value instanceof Double) {
+            printNumber((Double) value);
+        } else if (value instanceof Boolean) {
+            writeAscii((Boolean) value ? "true" : "false");
+        } else {
+            writeChars(value.toString());
+        }
+    }
+
+    private void printNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < PLAIN_INTEGER_LIMIT) {
+            long n = (long) value;
+            if (n < 0 || (n == 0 && Double.doubleToRawLongBits(value) != 0)) {
+                write((byte) '-');
+                n = -n;
+            }
+            writeDigits(n);
+            return;
+        }
+
+        // 小数、科学计数法、NaN 和 Infinity 交给 Double.toString，它们都不会以 ".0" 结尾
+        writeAscii(Double.toString(value));
+    }
+
+    private void writeDigits(long n) {
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n > 0);
+
+        ensure(length);
+        while (length > 0) {
+            buffer[count++] = digits[--length];
+        }
+    }
+
+    private void writeAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            write((byte) text.charAt(i));
+        }
+    }
+
+    private void writeChars(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                write((byte) c);
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                ensure(4);
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符无法编码，和 String.getBytes 一样输出 '?'
+                write((byte) '?');
+            } else {
+                ensure(3);
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void write(byte b) {
+        if (count == BUFFER_SIZE) drain();
+        buffer[count++] = b;
+    }
+
+    private void ensure(int size) {
+        if (count + size > BUFFER_SIZE) drain();
+    }
+
+    private void drain() {
+        try {
+            out.write(buffer, 0, count);
+            count = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void flush() {
+        drain();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        if (!closeable) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.zyh.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    协作式分时调度器：在固定个数的执行槽上轮流运行大量脚本
+
+    每个脚本运行在自己的线程上（JDK 21 及以上是虚拟线程），但只有拿到执行槽的脚本才会真正执行。
+    解释器在检查点询问调度器，时间片用完且有同等或更高优先级的脚本在等待时，就把执行槽交给它并挂起，
+    轮到自己时从挂起的位置继续。树遍历解释器的执行状态就是 Java 调用栈，挂起线程即可保留它，不需要另做续体。
+
+    priority 越大越优先：执行槽总是交给等待中优先级最高的脚本，同一优先级内按先来后到轮转，
+    所以只要有高优先级的脚本在运行，低优先级的脚本就不会被调度。
+    阻塞在 receive、join 上的脚本不会让出执行槽。
+
+    每个脚本的 cpuNanos 是它持有执行槽的总时间，waitNanos 是排队等待执行槽的总时间。
+ */
+public final class LoxScheduler implements AutoCloseable {
+
+    private final int workers;
+
+    private final long sliceNanos;
+
+    private final ExecutorService threads = LoxThreads.newTaskExecutor();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // 等待执行槽的脚本，优先级高的在前，同一优先级按入队顺序
+    private final PriorityQueue<Job> ready = new PriorityQueue<>();
+
+    private final List<Job> jobs = new ArrayList<>();
+
+    private int running = 0;
+
+    private long sequence = 0;
+
+    public LoxScheduler(int workers, long sliceMillis) {
+        if (workers <= 0) throw new IllegalArgumentException("workers must be positive.");
+        if (sliceMillis <= 0) throw new IllegalArgumentException("sliceMillis must be positive.");
+        this.workers = workers;
+        this.sliceNanos = TimeUnit.MILLISECONDS.toNanos(sliceMillis);
+    }
+
+    public Job submit(String name, Script script, int priority) {
+        return submit(name, script, null, Collections.emptyMap(), LoxOutput.stdout(), ExecutionBudget.UNLIMITED, priority);
+    }
+
+    /*
+        参数含义和 Script.execute 相同，脚本的返回值和运行时错误通过 Job.join 取得
+     */
+    public Job submit(String name, Script script, GlobalsSnapshot snapshot, Map<String, ?> bindings,
+                      LoxOutput output, ExecutionBudget budget, int priority) {
+        Job job = new Job(name, priority);
+        ExecutionContext context = new ExecutionContext(output, null, budget, job);
+
+        lock.lock();
+        try {
+            jobs.add(job);
+        } finally {
+            lock.unlock();
+        }
+
+        threads.execute(() -> {
+            acquire(job);
+            try {
+                job.result.complete(script.execute(context, snapshot, bindings));
+            } catch (Throwable e) {
+                job.result.completeExceptionally(e);
+            } finally {
+                release(job);
+            }
+        });
+        return job;
+    }
+
+    public List<Job> jobs() {
+        lock.lock();
+        try {
+            return new ArrayList<>(jobs);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+        每个脚本一行：名字、优先级、状态、持有执行槽的时间、排队时间和时间片个数
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format("%-20s %8s %8s %12s %12s %8s%n",
+                "Script", "Priority", "State", "CPU (ms)", "Wait (ms)", "Slices"));
+        for (Job job : jobs()) {
+            report.append(String.format("%-20s %8d %8s %12.2f %12.2f %8d%n",
+                    job.name, job.priority, job.state(),
+                    job.cpuNanos() / 1_000_000.0, job.waitNanos() / 1_000_000.0, job.slices()));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void close() {
+        threads.shutdown();
+    }
+
+    private void acquire(Job job) {
+        lock.lock();
+        try {
+            enqueue(job);
+            dispatch();
+            await(job);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Job job) {
+        lock.lock();
+        try {
+            account(job, System.nanoTime());
+            job.running = false;
+            running--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+        时间片用完时由脚本自己的线程调用。没有需要让位的脚本时直接开始下一个时间片
+     */
+    private void yieldSlot(Job job) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            Job next = ready.peek();
+            if (next == null || next.priority < job.priority) {
+                account(job, now);
+                startSlice(job, now);
+                return;
+            }
+
+            account(job, now);
+            job.running = false;
+            running--;
+            enqueue(job);
+            dispatch();
+            await(job);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Job job) {
+        job.sequence = sequence++;
+        job.enqueued = System.nanoTime();
+        ready.add(job);
+    }
+
+    private void dispatch() {
+        while (running < workers && !ready.isEmpty()) {
+            Job next = ready.poll();
+            next.running = true;
+            running++;
+            next.granted.signal();
+        }
+    }
+
+    private void await(Job job) {
+        while (!job.running) {
+            job.granted.awaitUninterruptibly();
+        }
+        long now = System.nanoTime();
+        job.waitNanos += now - job.enqueued;
+        startSlice(job, now);
+    }
+
+    private void startSlice(Job job, long now) {
+        job.sliceStart = now;
+        job.sliceEnd = now + sliceNanos;
+        job.slices++;
+    }
+
+    private static void account(Job job, long now) {
+        job.cpuNanos += now - job.sliceStart;
+    }
+
+    /*
+        调度器中的一个脚本
+     */
+    public final class Job implements Safepoint, Comparable<Job> {
+
+        public final String name;
+
+        public final int priority;
+
+        private final Condition granted = lock.newCondition();
+
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        // 以下状态都在 lock 中读写
+        private boolean running = false;
+
+        private long sequence;
+
+        private long enqueued;
+
+        private long sliceStart;
+
+        private long cpuNanos = 0;
+
+        private long waitNanos = 0;
+
+        private int slices = 0;
+
+        // 只由持有执行槽的线程读写
+        private long sliceEnd;
+
+        private Job(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public void poll() {
+            if (System.nanoTime() - sliceEnd >= 0) yieldSlot(this);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) return Integer.compare(other.priority, priority);
+            return Long.compare(sequence, other.sequence);
+        }
+
+        /*
+            等待脚本结束并返回最后一条表达式语句的值，运行时错误原样抛出
+         */
+        public Object join() {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while joining " + name + ".", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IllegalStateException(name + " failed.", cause);
+            }
+        }
+
+        public boolean isDone() {
+            return result.isDone();
+        }
+
+        public long cpuNanos() {
+            lock.lock();
+            try {
+                // 正在运行的脚本把当前时间片已经用掉的部分也算上
+                return running ? cpuNanos + System.nanoTime() - sliceStart : cpuNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long waitNanos() {
+            lock.lock();
+            try {
+                return waitNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int slices() {
+            lock.lock();
+            try {
+                return slices;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        String state() {
+            if (result.isDone()) return result.isCompletedExceptionally() ? "failed" : "done";
+            lock.lock();
+            try {
+                return running ? "running" : "waiting";
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.zyh.utils;
+
+import java.util.ArrayDeque;
+
+/*
+    Lox 的字符串值
+
+    拼接时只创建一个记录左右两部分的节点（rope），因此 s = s + piece 是 O(1) 的，
+    只有在打印、比较、求哈希等需要完整内容的时候才会展平成一个 String，展平的结果会被缓存。
+ */
+public final class LoxString implements CharSequence, Comparable<LoxString> {
+
+    // 总长度不超过该值时直接拼接成 String，短字符串不值得保留节点
+    private static final int FLAT_THRESHOLD = 32;
+
+    // String 表示已经展平，Concat 表示尚未展平的拼接节点
+    private Object content;
+
+    private final int length;
+
+    public LoxString(String value) {
+        this.content = value;
+        this.length = value.length();
+    }
+
+    private LoxString(Concat concat, int length) {
+        this.content = concat;
+        this.length = length;
+    }
+
+    public static boolean canConcat(LoxString left, LoxString right) {
+        return (long) left.length + right.length <= Integer.MAX_VALUE;
+    }
+
+    public LoxString concat(LoxString other) {
+        if (other.length == 0) return this;
+        if (length == 0) return other;
+
+        int total = length + other.length;
+        if (total <= FLAT_THRESHOLD) {
+            return new LoxString(toString().concat(other.toString()));
+        }
+        return new LoxString(new Concat(this, other), total);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        Object current = content;
+        if (current instanceof String) return (String) current;
+
+        String flat = flatten((Concat) current);
+        content = flat;
+        return flat;
+    }
+
+    /*
+        迭代展平，左深的长拼接链也不会栈溢出
+     */
+    private String flatten(Concat root) {
+        char[] chars = new char[length];
+        int position = 0;
+
+        ArrayDeque<LoxString> pending = new ArrayDeque<>();
+        pending.push(root.right);
+        pending.push(root.left);
+
+        while (!pending.isEmpty()) {
+            LoxString part = pending.pop();
+            Object partContent = part.content;
+
+            if (partContent instanceof String) {
+                String text = (String) partContent;
+                text.getChars(0, text.length(), chars, position);
+                position += text.length();
+            } else {
+                Concat concat = (Concat) partContent;
+                pending.push(concat.right);
+                pending.push(concat.left);
+            }
+        }
+
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LoxString)) return false;
+
+        LoxString other = (LoxString) o;
+        if (length != other.length) return false;
+        return toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public int compareTo(LoxString other) {
+        return toString().compareTo(other.toString());
+    }
+
+    private static final class Concat {
+        final LoxString left;
+
+        final LoxString right;
+
+        Concat(LoxString left, LoxString right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.zyh.utils;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/*
+    spawn 返回的任务句柄
+
+    任务在自己的 Interpreter（fork 出的执行状态）中调用一个无参函数，join 等待任务结束并返回函数的返回值，
+    任务中的运行时错误在 join 时原样抛出。
+ */
+public class LoxTask {
+
+    private final Future<Object> future;
+
+    LoxTask(Interpreter interpreter, JLoxCallable function) {
+        Interpreter forked = interpreter.fork();
+        this.future = LoxThreads.submit(() -> function.call(forked, Collections.emptyList()));
+    }
+
+    Object join() {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while joining a task.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new NativeError("Task failed: " + cause + ".");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
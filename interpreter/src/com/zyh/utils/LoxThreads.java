@@ -0,0 +1,44 @@
+package com.zyh.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    执行 Lox 脚本的线程
+
+    运行在 JDK 21 及以上时每个任务使用一个虚拟线程，更早的 JDK 上退化为按需创建的守护平台线程。
+ */
+public final class LoxThreads {
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    // spawn 共用的执行器，线程都是守护线程，主脚本结束时未 join 的任务随进程退出
+    private static final ExecutorService tasks = newTaskExecutor();
+
+    private LoxThreads() {
+    }
+
+    static <T> Future<T> submit(Callable<T> task) {
+        return tasks.submit(task);
+    }
+
+    public static ExecutorService newTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemonFactory());
+        }
+    }
+
+    private static ThreadFactory daemonFactory() {
+        return runnable -> {
+            Thread thread = new Thread(runnable, "jlox-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
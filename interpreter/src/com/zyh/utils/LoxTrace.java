@@ -0,0 +1,225 @@
+package com.zyh.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    执行追踪：记录 Lox 函数的进入、退出（可选每条语句的开始、结束），导出为 Chrome trace-event JSON，
+    可以在 chrome://tracing 或 Perfetto 中查看时间线
+
+    事件写入预先分配的环形缓冲区，每个事件两个 long：相对开始时间的纳秒数，以及类型、线程和名字编号，
+    记录时不分配对象；缓冲区写满后覆盖最早的事件，导出时丢弃失去开始事件的结束事件，补齐没有结束的开始事件。
+    同一次执行 spawn 出的任务写入同一个缓冲区，各自是一个线程。
+
+    解释器只在 ENABLED 为 true 时才检查是否需要记录。ENABLED 在类初始化时从系统属性 lox.trace 读取，
+    JIT 会把它当作常量，关闭追踪时检查连同记录代码一起被消除。所以必须在启动参数中加上 -Dlox.trace=true
+    （命令行的 --trace 会在创建解释器之前设置），否则无法创建 LoxTrace。
+ */
+public final class LoxTrace {
+
+    public static final String PROPERTY = "lox.trace";
+
+    static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+    private static final int CALL_BEGIN = 0;
+    private static final int CALL_END = 1;
+    private static final int STATEMENT_BEGIN = 2;
+    private static final int STATEMENT_END = 3;
+
+    private final long[] events;
+
+    private final int mask;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final long start = System.nanoTime();
+
+    private final boolean statements;
+
+    // 函数声明或语句到名字编号，名字在第一次记录时生成
+    private final Map<Object, Integer> ids = new ConcurrentHashMap<>();
+
+    private final List<String> names = new ArrayList<>();
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /*
+        capacity 是缓冲区能容纳的事件个数，向上取整到 2 的幂；statements 为 true 时还记录每条语句
+     */
+    public LoxTrace(int capacity, boolean statements) {
+        if (!ENABLED) {
+            throw new IllegalStateException("Tracing is disabled, start the JVM with -D" + PROPERTY + "=true.");
+        }
+        if (capacity <= 0 || capacity > 1 << 28) throw new IllegalArgumentException("capacity must be in (0, 2^28].");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.events = new long[size * 2];
+        this.mask = size - 1;
+        this.statements = statements;
+    }
+
+    boolean statements() {
+        return statements;
+    }
+
+    /*
+        每个解释器（包括 spawn 出的任务）一个线程编号
+     */
+    int thread() {
+        return threads.incrementAndGet();
+    }
+
+    void enter(int thread, Stmt.Function function) {
+        record(CALL_BEGIN, thread, function);
+    }
+
+    void exit(int thread, Stmt.Function function) {
+        record(CALL_END, thread, function);
+    }
+
+    void begin(int thread, Stmt statement) {
+        record(STATEMENT_BEGIN, thread, statement);
+    }
+
+    void end(int thread, Stmt statement) {
+        record(STATEMENT_END, thread, statement);
+    }
+
+    private void record(int kind, int thread, Object site) {
+        long time = System.nanoTime() - start;
+        int slot = (int) (count.getAndIncrement() & mask) << 1;
+        events[slot] = time;
+        events[slot + 1] = (long) kind << 60 | (long) thread << 32 | id(site);
+    }
+
+    private int id(Object site) {
+        Integer id = ids.get(site);
+        if (id != null) return id;
+        return ids.computeIfAbsent(site, key -> {
+            synchronized (names) {
+                names.add(describe(key));
+                return names.size() - 1;
+            }
+        });
+    }
+
+    private static String describe(Object site) {
+        if (site instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) site;
+            return function.name.lexeme;
+        }
+        if (site instanceof Stmt.Var) return "var " + ((Stmt.Var) site).name.lexeme + line(((Stmt.Var) site).name);
+        if (site instanceof Stmt.Class) return "class " + ((Stmt.Class) site).name.lexeme + line(((Stmt.Class) site).name);
+        if (site instanceof Stmt.WHILE) return "while" + line(((Stmt.WHILE) site).keyword);
+        if (site instanceof Stmt.Return) return "return" + line(((Stmt.Return) site).keyword);
+        if (site instanceof Stmt.Import) return "import" + line(((Stmt.Import) site).keyword);
+        if (site instanceof Stmt.LOOPCONTRAL) return ((Stmt.LOOPCONTRAL) site).type.lexeme + line(((Stmt.LOOPCONTRAL) site).type);
+        if (site instanceof Stmt.IF) return "if";
+        if (site instanceof Stmt.Print) return "print";
+        if (site instanceof Stmt.Block) return "block";
+        return "expression";
+    }
+
+    private static String line(Token token) {
+        return " (line " + token.line + ")";
+    }
+
+    /*
+        导出当前缓冲区中的事件，可以在执行过程中随时调用，正在写入的最后几个事件可能不完整
+     */
+    public void write(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            write(writer);
+        }
+    }
+
+    public void write(Writer out) throws IOException {
+        BufferedWriter writer = out instanceof BufferedWriter ? (BufferedWriter) out : new BufferedWriter(out);
+        long end = count.get();
+        long first = Math.max(0, end - (mask + 1));
+        List<String> names;
+        synchronized (this.names) {
+            names = new ArrayList<>(this.names);
+        }
+
+        writer.write("{\"displayTimeUnit\":\"ns\",\"otherData\":{\"dropped\":" + first + "},\"traceEvents\":[");
+        boolean comma = false;
+        for (int thread = 1; thread <= threads.get(); thread++) {
+            if (comma) writer.write(',');
+            writer.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread +
+                    ",\"args\":{\"name\":\"" + (thread == 1 ? "main" : "task " + thread) + "\"}}");
+            comma = true;
+        }
+
+        // 每个线程尚未结束的开始事件
+        Map<Integer, List<long[]>> open = new HashMap<>();
+        long last = 0;
+        for (long i = first; i < end; i++) {
+            int slot = (int) (i & mask) << 1;
+            long time = events[slot];
+            long word = events[slot + 1];
+            int kind = (int) (word >>> 60);
+            int thread = (int) (word >>> 32) & 0x0FFFFFFF;
+            int id = (int) word;
+            if (id >= names.size()) continue;
+            last = Math.max(last, time);
+
+            List<long[]> stack = open.computeIfAbsent(thread, key -> new ArrayList<>());
+            boolean begin = kind == CALL_BEGIN || kind == STATEMENT_BEGIN;
+            if (begin) {
+                stack.add(new long[]{kind, id});
+            } else if (stack.isEmpty()) {
+                continue;
+            } else {
+                stack.remove(stack.size() - 1);
+            }
+            if (comma) writer.write(',');
+            event(writer, names.get(id), kind, begin, time, thread);
+            comma = true;
+        }
+
+        for (Map.Entry<Integer, List<long[]>> entry : open.entrySet()) {
+            List<long[]> stack = entry.getValue();
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                if (comma) writer.write(',');
+                event(writer, names.get((int) stack.get(i)[1]), (int) stack.get(i)[0], false, last, entry.getKey());
+                comma = true;
+            }
+        }
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+
+    private static void event(Writer writer, String name, int kind, boolean begin, long time, int thread) throws IOException {
+        writer.write("\n{\"name\":\"");
+        escape(writer, name);
+        writer.write(kind <= CALL_END ? "\",\"cat\":\"call\"" : "\",\"cat\":\"statement\"");
+        writer.write(begin ? ",\"ph\":\"B\"" : ",\"ph\":\"E\"");
+        writer.write(String.format(",\"ts\":%d.%03d,\"pid\":1,\"tid\":%d}", time / 1000, time % 1000, thread));
+    }
+
+    private static void escape(Writer writer, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.zyh.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    import 的模块缓存，整个进程共享
+
+    模块按绝对路径编译一次，扫描、解析和作用域解析的结果和 Script 一样执行时不会修改，
+    所以导入同一个库的所有脚本（包括并行的执行）共用同一棵语法树。
+    每次加载只比较一次文件的修改时间，文件改动后重新编译。
+ */
+final class Modules {
+
+    // 以 LAZY、COMPACT 的组合为下标，不同编译方式的结果分开缓存
+    static final int LAZY = 1;
+
+    static final int COMPACT = 2;
+
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentHashMap<Path, Module>[] caches = new ConcurrentHashMap[4];
+
+    static {
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    private Modules() {
+    }
+
+    /*
+        返回模块编译好的语句，编译错误抛出 CompileError，编译失败的模块不缓存
+     */
+    static List<Stmt> load(Path path, int mode, LoxCoverage coverage) throws IOException {
+        if (coverage != null) {
+            // 插桩的计数器属于这一次统计，不能和其他执行共用
+            try {
+                return coverage.module(path, mode, () -> compile(path, mode, coverage));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        ConcurrentHashMap<Path, Module> cache = caches[mode];
+        FileTime modified = Files.getLastModifiedTime(path);
+        Module module = cache.get(path);
+        if (module != null && module.modified.equals(modified)) return module.statements;
+
+        // 同一模块同时被多个执行首次导入时只编译一次
+        try {
+            return cache.compute(path, (key, cached) -> {
+                if (cached != null && cached.modified.equals(modified)) return cached;
+                return new Module(modified, compile(key, mode, null));
+            }).statements;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static List<Stmt> compile(Path path, int mode, LoxCoverage coverage) {
+        String source;
+        try {
+            source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<Stmt> statements = LoxEngine.compileStatements(source, path.getParent(), (mode & LAZY) != 0);
+        if (coverage != null) {
+            coverage.instrument(path.toString(), statements);
+        }
+        if ((mode & COMPACT) != 0) {
+            new Compactor().compact(statements);
+        }
+        return statements;
+    }
+
+    private static final class Module {
+        final FileTime modified;
+
+        final List<Stmt> statements;
+
+        Module(FileTime modified, List<Stmt> statements) {
+            this.modified = modified;
+            this.statements = statements;
+        }
+    }
+}
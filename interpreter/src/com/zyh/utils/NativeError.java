@@ -0,0 +1,11 @@
+package com.zyh.utils;
+
+/*
+    原生函数内部的错误，由调用处补上位置信息后转换为 RuntimeError
+ */
+public class NativeError extends RuntimeException{
+
+    public NativeError(String message) {
+        super(message);
+    }
+}
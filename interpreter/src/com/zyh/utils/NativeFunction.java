@@ -0,0 +1,20 @@
+package com.zyh.utils;
+
+public abstract class NativeFunction implements JLoxCallable{
+
+    private final int arity;
+
+    protected NativeFunction(int arity) {
+        this.arity = arity;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,254 @@
+package com.zyh.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    定义在全局环境中的原生函数
+ */
+final class Natives {
+
+    // 不需要解释器的原生函数直接绑定静态方法，绑定结果在所有解释器之间共享
+    private static final LoxNative CLOCK = LoxNative.of(Natives.class, "clock");
+
+    private Natives() {
+    }
+
+    static void define(Environment globals) {
+        globals.define("clock", CLOCK);
+
+        globals.define("Array", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                interpreter.countObject();
+                return new LoxArray(size(arguments.get(0)));
+            }
+        });
+
+        globals.define("NumberArray", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                interpreter.countObject();
+                return new LoxNumberArray(size(arguments.get(0)));
+            }
+        });
+
+        globals.define("Map", new NativeFunction(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                interpreter.countObject();
+                return new LoxMap();
+            }
+        });
+
+        globals.define("len", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object value = arguments.get(0);
+                if (value instanceof JLoxIndexable) return (double) ((JLoxIndexable) value).length();
+                if (value instanceof LoxString) return (double) ((LoxString) value).length();
+                throw new NativeError("len() expects an array, a map or a string.");
+            }
+        });
+
+        globals.define("fill", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object array = arguments.get(0);
+                Object value = arguments.get(1);
+                if (array instanceof LoxArray) {
+                    Arrays.fill(((LoxArray) array).elements, value);
+                } else if (array instanceof LoxNumberArray) {
+                    Arrays.fill(((LoxNumberArray) array).elements, number(value));
+                } else {
+                    throw new NativeError("fill() expects an array.");
+                }
+                return null;
+            }
+        });
+
+        globals.define("copy", new NativeFunction(5) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                copy(arguments.get(0), size(arguments.get(1)), arguments.get(2), size(arguments.get(3)), size(arguments.get(4)));
+                return null;
+            }
+        });
+
+        globals.define("sum", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object array = arguments.get(0);
+                double sum = 0;
+                if (array instanceof LoxNumberArray) {
+                    for (double element : ((LoxNumberArray) array).elements) {
+                        sum += element;
+                    }
+                } else if (array instanceof LoxArray) {
+                    for (Object element : ((LoxArray) array).elements) {
+                        sum += number(element);
+                    }
+                } else {
+                    throw new NativeError("sum() expects an array.");
+                }
+                return sum;
+            }
+        });
+
+        globals.define("sort", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object array = arguments.get(0);
+                if (array instanceof LoxNumberArray) {
+                    Arrays.sort(((LoxNumberArray) array).elements);
+                } else if (array instanceof LoxArray) {
+                    sort(((LoxArray) array).elements);
+                } else {
+                    throw new NativeError("sort() expects an array.");
+                }
+                return null;
+            }
+        });
+
+        globals.define("has", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return map(arguments.get(0)).containsKey(arguments.get(1));
+            }
+        });
+
+        globals.define("remove", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return map(arguments.get(0)).remove(arguments.get(1));
+            }
+        });
+
+        globals.define("keys", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return map(arguments.get(0)).keys();
+            }
+        });
+
+        globals.define("spawn", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object function = arguments.get(0);
+                if (!(function instanceof JLoxCallable) || ((JLoxCallable) function).arity() != 0) {
+                    throw new NativeError("spawn() expects a function with no parameters.");
+                }
+                return new LoxTask(interpreter, (JLoxCallable) function);
+            }
+        });
+
+        globals.define("join", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object task = arguments.get(0);
+                if (!(task instanceof LoxTask)) throw new NativeError("join() expects a task.");
+                return ((LoxTask) task).join();
+            }
+        });
+
+        globals.define("Channel", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                interpreter.countObject();
+                return new LoxChannel(size(arguments.get(0)));
+            }
+        });
+
+        globals.define("send", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                channel(arguments.get(0)).send(arguments.get(1));
+                return null;
+            }
+        });
+
+        globals.define("receive", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return channel(arguments.get(0)).receive();
+            }
+        });
+    }
+
+    static double clock() {
+        return (double)System.currentTimeMillis() / 1000.0;
+    }
+
+    private static int size(Object value) {
+        double number = number(value);
+        int size = (int) number;
+        if (size != number || size < 0) {
+            throw new NativeError("Expect a non-negative integer but got " + Interpreter.stringify(value) + ".");
+        }
+        return size;
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Double) return (Double) value;
+        throw new NativeError("Expect a number but got " + Interpreter.stringify(value) + ".");
+    }
+
+    private static LoxMap map(Object value) {
+        if (value instanceof LoxMap) return (LoxMap) value;
+        throw new NativeError("Expect a map but got " + Interpreter.stringify(value) + ".");
+    }
+
+    private static LoxChannel channel(Object value) {
+        if (value instanceof LoxChannel) return (LoxChannel) value;
+        throw new NativeError("Expect a channel but got " + Interpreter.stringify(value) + ".");
+    }
+
+    private static void copy(Object src, int srcPos, Object dst, int dstPos, int count) {
+        if (!(src instanceof JLoxIndexable) || src instanceof LoxMap
+                || !(dst instanceof JLoxIndexable) || dst instanceof LoxMap) {
+            throw new NativeError("copy() expects two arrays.");
+        }
+        if (srcPos + count > ((JLoxIndexable) src).length() || dstPos + count > ((JLoxIndexable) dst).length()) {
+            throw new NativeError("copy() range out of bounds.");
+        }
+
+        if (src instanceof LoxArray && dst instanceof LoxArray) {
+            System.arraycopy(((LoxArray) src).elements, srcPos, ((LoxArray) dst).elements, dstPos, count);
+        } else if (src instanceof LoxNumberArray && dst instanceof LoxNumberArray) {
+            System.arraycopy(((LoxNumberArray) src).elements, srcPos, ((LoxNumberArray) dst).elements, dstPos, count);
+        } else if (src instanceof LoxNumberArray) {
+            double[] from = ((LoxNumberArray) src).elements;
+            Object[] to = ((LoxArray) dst).elements;
+            for (int i = 0; i < count; i++) {
+                to[dstPos + i] = from[srcPos + i];
+            }
+        } else {
+            Object[] from = ((LoxArray) src).elements;
+            double[] to = ((LoxNumberArray) dst).elements;
+            // 先检查再复制，出错时目标数组保持不变
+            for (int i = 0; i < count; i++) {
+                number(from[srcPos + i]);
+            }
+            for (int i = 0; i < count; i++) {
+                to[dstPos + i] = (Double) from[srcPos + i];
+            }
+        }
+    }
+
+    private static void sort(Object[] elements) {
+        boolean numbers = true;
+        boolean strings = true;
+        for (Object element : elements) {
+            numbers &= element instanceof Double;
+            strings &= element instanceof LoxString;
+        }
+
+        if (numbers) {
+            Arrays.sort(elements, (a, b) -> Double.compare((Double) a, (Double) b));
+        } else if (strings) {
+            Arrays.sort(elements, (a, b) -> ((LoxString) a).compareTo((LoxString) b));
+        } else {
+            throw new NativeError("sort() expects an array of numbers or an array of strings.");
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package com.zyh.utils;
 
 
-import com.zyh.JLox;
-
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -11,7 +12,7 @@ import java.util.List;
     解析规则
 
     expression -> assignment;
-    assignment -> (call ".")? IDENTIFIER "=" assignment | logic_or;
+    assignment -> (call ".")? IDENTIFIER "=" assignment | call "[" expression "]" "=" assignment | logic_or;
     logic_or -> logic_and ("or" logic_and)*;
     logic_and -> equality ("and" logic_and)*;
     equality -> comparison ( ( "!=" | "==")  comparison )*;
@@ -19,7 +20,7 @@ import java.util.List;
     term -> factor ( ( "-" | "+") factor )*;
     factor -> unary ( ( "/" | "*") unary )*;
     unary -> ( "!" | "-") unary | call;
-    call -> primary ( "(" arguments? ")" | "." IDENTIFIER )*;
+    call -> primary ( "(" arguments? ")" | "." IDENTIFIER | "[" expression "]" )*;
     arguments -> AnonymousFun | expression ("," expression)* ;
     primary -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" | "this" | "super" "." IDENTIFIER;
 
@@ -36,8 +37,11 @@ import java.util.List;
                | printStmt
                | returnStmt
                | whileStmt
+               | importStmt
                | block ;
 
+    importStmt     → "import" STRING ";" ;
+
     returnStmt     → "return" expression? ";" ;
 
     classDecl      → "class" IDENTIFIER ( "<" IDENTIFIER)* "{" function* "}" ;
@@ -46,26 +50,68 @@ import java.util.List;
 public class Parser {
     private final List<Token> tokenList;
 
+    private final ExecutionContext context;
+
+    // import 的相对路径以它为基准，为 null 时相对于当前工作目录
+    private final Path directory;
+
+    // 顶层函数和方法的函数体是否延迟到第一次调用时再解析，见 LazyBody
+    private final boolean lazy;
+
     private int current = 0;
 
-    public Parser(List<Token> tokenList) {
+    // 当前所在块的嵌套层数，0 表示顶层
+    private int depth = 0;
+
+    // 词法单元列表还在被扫描线程追加（见 PipelinedParser），延迟解析的函数体需要复制自己的词法单元
+    private final boolean streaming;
+
+    public Parser(List<Token> tokenList, ExecutionContext context) {
+        this(tokenList, context, null);
+    }
+
+    public Parser(List<Token> tokenList, ExecutionContext context, Path directory) {
+        this(tokenList, context, directory, false);
+    }
+
+    public Parser(List<Token> tokenList, ExecutionContext context, Path directory, boolean lazy) {
+        this(tokenList, context, directory, lazy, false);
+    }
+
+    Parser(List<Token> tokenList, ExecutionContext context, Path directory, boolean lazy, boolean streaming) {
         this.tokenList = tokenList;
+        this.context = context;
+        this.directory = directory;
+        this.lazy = lazy;
+        this.streaming = streaming;
     }
 
     public List<Stmt> parse(){
         ArrayList<Stmt> stmts = new ArrayList<>();
 
-        while(!isAtEnd()){
-            stmts.add(declaration());
+        while(hasNext()){
+            stmts.add(next());
         }
         return stmts;
     }
 
+    /*
+        逐条解析顶层语句，出错的语句为 null
+     */
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    Stmt next() {
+        return declaration();
+    }
+
     private Stmt declaration() {
+        int line = peek().line;
         try {
-            if (match(TokenType.VAR)) return varDeclaration();
-            if (match(TokenType.FUN)) return function("function");
-            if (match(TokenType.CLASS)) return classDeclaration();
+            if (match(TokenType.VAR)) return at(line, varDeclaration());
+            if (match(TokenType.FUN)) return at(line, function("function", lazy && depth == 0));
+            if (match(TokenType.CLASS)) return at(line, classDeclaration());
 
             return statement();
         } catch (ParserError e){
@@ -87,14 +133,14 @@ public class Parser {
         ArrayList<Stmt.Function> methods = new ArrayList<>();
 
         while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()){
-            methods.add(function("methods"));
+            methods.add(function("methods", lazy && depth == 0 && superClass == null));
         }
 
         consume(TokenType.RIGHT_BRACE,"Expect '}' after class body.");
         return new Stmt.Class(name,methods,superClass);
     }
 
-    private Stmt.Function function(String kind) {
+    private Stmt.Function function(String kind, boolean lazyBody) {
         Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
         consume(TokenType.LEFT_PAREN,"Expect '(' after " + kind + " name.");
         ArrayList<Token> params = new ArrayList<>();
@@ -111,11 +157,35 @@ public class Parser {
         consume(TokenType.RIGHT_PAREN,"Expect ')' after parameters.");
 
         consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        if(lazyBody){
+            return new Stmt.Function(name, params, skipBody(kind.equals("methods")));
+        }
         List<Stmt> body = block();
 
         return new Stmt.Function(name,params,body);
     }
 
+    /*
+        只按花括号配对跳过函数体，不检查其中的语法
+     */
+    private LazyBody skipBody(boolean method) {
+        int start = current;
+        int braces = 1;
+        while(!isAtEnd()){
+            TokenType type = peek().tokenType;
+            if(type == TokenType.LEFT_BRACE)    braces ++;
+            else if(type == TokenType.RIGHT_BRACE && -- braces == 0)  break;
+            advance();
+        }
+
+        int end = current;
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+        if(streaming){
+            return new LazyBody(new ArrayList<>(tokenList.subList(start, end + 1)), 0, end - start, directory, method);
+        }
+        return new LazyBody(tokenList, start, end, directory, method);
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(TokenType.IDENTIFIER,"Expect variable name.");
 
@@ -129,11 +199,42 @@ public class Parser {
     }
 
     // TODO 语法检查
+    /*
+        丢弃 token 直到下一条语句的开头，避免一个语法错误引发一连串的错误
+     */
     private void synchronize() {
+        advance();
+
+        while(!isAtEnd()){
+            if(previous().tokenType == TokenType.SEMICOLON) return;
+
+            switch (peek().tokenType) {
+                case CLASS:
+                case FUN:
+                case VAR:
+                case FOR:
+                case IF:
+                case WHILE:
+                case PRINT:
+                case RETURN:
+                case IMPORT:
+                    return;
+            }
 
+            advance();
+        }
     }
 
     private Stmt statement() {
+        return at(peek().line, simpleStatement());
+    }
+
+    private static Stmt at(int line, Stmt statement) {
+        statement.line = line;
+        return statement;
+    }
+
+    private Stmt simpleStatement() {
         if(match(TokenType.PRINT))  return PrintStatement();
         if(match(TokenType.LEFT_BRACE)){
             return new Stmt.Block(block());
@@ -142,12 +243,27 @@ public class Parser {
         if(match(TokenType.WHILE))  return whileStatement();
         if(match(TokenType.FOR))    return forStatement();
         if(match(TokenType.RETURN)) return returnStatement();
+        if(match(TokenType.IMPORT)) return importStatement();
 
         if(match(TokenType.BREAK) || match(TokenType.CONTINUE)) return loopContralStatement();
 
         return expressionStatement();
     }
 
+    private Stmt importStatement() {
+        Token keyword = previous();
+        Token name = consume(TokenType.STRING, "Expect module path after 'import'.");
+        consume(TokenType.SEMICOLON, "Expect ';' after module path.");
+
+        try {
+            Path path = Paths.get(name.literal.toString());
+            if(directory != null)   path = directory.resolve(path);
+            return new Stmt.Import(keyword, path.toAbsolutePath().normalize(), lazy);
+        } catch (InvalidPathException e) {
+            throw error(name, "Invalid module path.");
+        }
+    }
+
     private Stmt returnStatement() {
         Token keyword = previous();
         Expr value = null;
@@ -168,6 +284,7 @@ public class Parser {
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN,"Expect '(' after 'for'.");
         Stmt varDeclara;
 
@@ -193,7 +310,8 @@ public class Parser {
         Stmt body = statement();
 
         if(condition == null)  condition = new Expr.Literal(true);
-        body = new Stmt.WHILE(condition,body,new Stmt.Expression(operator));
+        Stmt increment = operator == null ? null : new Stmt.Expression(operator);
+        body = new Stmt.WHILE(keyword,condition,body,increment);
 
         if(varDeclara != null){
             body = new Stmt.Block(Arrays.asList(varDeclara,body));
@@ -203,13 +321,14 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN,"Expect '(' after 'while'.");
         Expr condition = expression();
         consume(TokenType.RIGHT_PAREN,"Expect ')' after 'while'.");
 
         Stmt body = statement();
 
-        return new Stmt.WHILE(condition,body,null);
+        return new Stmt.WHILE(keyword,condition,body,null);
     }
 
     private Stmt.IF ifStatement() {
@@ -229,8 +348,13 @@ public class Parser {
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
-        while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()){
-            statements.add(declaration());
+        depth ++;
+        try {
+            while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()){
+                statements.add(declaration());
+            }
+        } finally {
+            depth --;
         }
 
         consume(TokenType.RIGHT_BRACE,"Expect '}' after block.");
@@ -264,6 +388,9 @@ public class Parser {
             } else if(expr instanceof Expr.Get){
                 Expr.Get get = (Expr.Get) expr;
                 return new Expr.Set(get.object,get.name,value);
+            } else if(expr instanceof Expr.IndexGet){
+                Expr.IndexGet get = (Expr.IndexGet) expr;
+                return new Expr.IndexSet(get.object,get.bracket,get.index,value);
             }
             error(equal,"Invalid assignment target.");
         }
@@ -361,6 +488,10 @@ public class Parser {
             } else if(match(TokenType.DOT)){
                 Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
                 expr = new Expr.Get(expr,name);
+            } else if(match(TokenType.LEFT_BRACKET)){
+                Expr index = expression();
+                Token bracket = consume(TokenType.RIGHT_BRACKET, "Expect ']' after index.");
+                expr = new Expr.IndexGet(expr,bracket,index);
             } else {
                 break;
             }
@@ -454,7 +585,7 @@ public class Parser {
     }
 
     private ParserError error(Token token, String message) {
-        JLox.error(token, message);
+        context.error(token, message);
         throw new ParserError();
     }
 
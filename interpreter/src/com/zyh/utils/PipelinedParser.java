@@ -0,0 +1,95 @@
+package com.zyh.utils;
+
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+    流水线解析：在另一个线程上边扫描边解析，每解析完一条顶层语句就交给调用者，
+    调用者可以立即解析作用域并执行它，同时后面的语句继续扫描、解析
+
+        try (PipelinedParser parser = new PipelinedParser(source, context, directory, lazy)) {
+            for (Stmt statement; (statement = parser.next()) != null; ) { ... }
+        }
+
+    遇到语法（或词法）错误时，出错的语句和它之后的语句都不再交给调用者，解析线程继续解析到文件末尾，
+    next 返回 null 之前把所有错误按顺序报告给 context。所以出错之前的语句已经执行过，它们的输出会保留。
+    调用者提前停止（比如运行时错误）时应调用 close，之后的语法错误不再报告。
+ */
+public final class PipelinedParser implements AutoCloseable {
+
+    // 队列中表示解析结束的标记
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+    private final ExecutionContext context;
+
+    // 解析线程自己的上下文，错误只记录不打印，结束时转交给 context
+    private final ExecutionContext parseContext = new ExecutionContext(LoxOutput.stdout(), null);
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    // 解析线程中的异常（比如嵌套过深栈溢出），在 END 之前写入，由 next 重新抛出
+    private Throwable failure;
+
+    private boolean ended;
+
+    public PipelinedParser(String source, ExecutionContext context, Path directory, boolean lazy) {
+        this.context = context;
+        this.thread = new Thread(() -> parse(source, directory, lazy), "lox-parser");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void parse(String source, Path directory, boolean lazy) {
+        try {
+            Parser parser = new Parser(new Scanner(source, parseContext).stream(), parseContext, directory, lazy, true);
+            while (!closed && parser.hasNext()) {
+                Stmt statement = parser.next();
+                // 出错之后只为了报告后面的错误而继续解析
+                if (!parseContext.hadError()) queue.add(statement);
+            }
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        } finally {
+            queue.add(END);
+        }
+    }
+
+    /*
+        返回下一条语句，解析完毕或者遇到语法错误时返回 null
+     */
+    public Stmt next() {
+        if (ended) return null;
+
+        Object item;
+        try {
+            item = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            return null;
+        }
+        if (item != END) return (Stmt) item;
+
+        ended = true;
+        for (String error : parseContext.errors()) {
+            context.error(error);
+        }
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure != null) throw (Error) failure;
+        return null;
+    }
+
+    /*
+        停止解析线程，已经解析出的语句被丢弃
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ended = true;
+    }
+}
@@ -1,28 +1,71 @@
 package com.zyh.utils;
 
-import com.zyh.JLox;
-
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/*
+    静态解析：计算局部变量引用的作用域距离，以及每个函数需要捕获的外层变量
 
+    闭包只捕获函数体中实际用到的外层变量。被捕获的变量如果会被修改（或者在赋值之前就被捕获，比如递归的局部函数），
+    声明处和所有引用处都标记为 boxed，变量放在 Cell 中共享；其余变量在创建闭包时按值复制。
+
+    顶层的函数和类都是全局变量，它们的函数体（方法体）之间没有共享的局部作用域，
+    resolve(List) 把这些函数体分给 fork/join 公共池中的任务，每个任务用自己的 Resolver 和作用域栈。
+    任务中的错误先缓存起来，全部解析完之后按源代码中的顺序报告，与顺序解析的结果相同。
+ */
 public class Resolver implements Visitor{
 
-    private final Interpreter interpreter;
+    private final ExecutionContext context;
+
+    private final List<Map<String,Local>> scopes = new ArrayList<>();
 
-    private final Stack<Map<String,Boolean>> scopes = new Stack<Map<String, Boolean>>();
+    // 顶层代码也当作一个函数，它的作用域从 0 开始
+    private FunctionScope currentScope = new FunctionScope(null, 0);
 
     private FunctionType currentFunction = FunctionType.NONE;
 
     private ClassType currentClass = ClassType.NONE;
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // 并行解析时按源代码顺序排列的错误：List<Report> 是顶层代码的错误，ForkJoinTask 是一个函数体任务；
+    // 为 null 时直接报告给 context
+    private List<Object> pending;
+
+    public Resolver(ExecutionContext context) {
+        this.context = context;
+    }
+
+    private Map<String, Local> peek() {
+        return scopes.get(scopes.size() - 1);
+    }
+
+    private void error(Token token, String message) {
+        if(pending == null){
+            context.error(token, message);
+            return;
+        }
+        reports().add(new Report(token, message));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Report> reports() {
+        Object last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+        if(last instanceof List)    return (List<Report>) last;
+
+        List<Report> reports = new ArrayList<>();
+        pending.add(reports);
+        return reports;
     }
 
     private void endScope() {
-        scopes.pop();
+        for (Local local : scopes.remove(scopes.size() - 1).values()) {
+            if(local.captured && (local.assigned || local.capturedEarly)){
+                local.box();
+            }
+        }
     }
 
     public void resolve(Stmt stmt) {
@@ -34,15 +77,111 @@ public class Resolver implements Visitor{
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String,Boolean>());
+        scopes.add(new HashMap<String,Local>());
     }
 
+    /*
+        REPL 中同一个 Resolver 依次解析每一行。解析结果都记在本行的语法树上，顶层作用域在两行之间为空，
+        一行的语法树不可达后它的解析结果随之回收，不会随会话增长。
+        解析中途异常退出（比如嵌套过深栈溢出）时恢复到顶层状态，以免影响后面的行
+     */
     public void resolve(List<Stmt> statements) {
+        boolean completed = false;
+        try {
+            if(parallel(statements)){
+                resolveParallel(statements);
+            } else {
+                resolveAll(statements);
+            }
+            completed = true;
+        } finally {
+            if (!completed) reset();
+        }
+    }
+
+    private void resolveAll(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
         }
     }
 
+    /*
+        公共池只有一个线程，或者可以分出去的函数体不到两个时，分任务的开销得不偿失
+     */
+    private boolean parallel(List<Stmt> statements) {
+        if(ForkJoinPool.getCommonPoolParallelism() < 2 || pending != null)   return false;
+
+        int bodies = 0;
+        for (Stmt statement : statements) {
+            if(statement instanceof Stmt.Function && ((Stmt.Function) statement).lazy == null){
+                bodies++;
+            } else if(statement instanceof Stmt.Class){
+                bodies += ((Stmt.Class) statement).methods.size();
+            }
+            if(bodies >= 2) return true;
+        }
+        return false;
+    }
+
+    private void resolveParallel(List<Stmt> statements) {
+        pending = new ArrayList<>();
+        try {
+            resolveAll(statements);
+
+            // 依次等待各个任务，并按顺序报告错误；任务中的异常（比如嵌套过深）在 join 时抛出
+            for (Object reports : pending) {
+                if(reports instanceof ForkJoinTask){
+                    reports = ((ForkJoinTask<?>) reports).join();
+                }
+                for (Object report : (List<?>) reports) {
+                    ((Report) report).reportTo(context);
+                }
+            }
+        } finally {
+            for (Object reports : pending) {
+                if(reports instanceof ForkJoinTask) ((ForkJoinTask<?>) reports).cancel(false);
+            }
+            pending = null;
+        }
+    }
+
+    /*
+        顶层函数体（方法体）由任务解析：scopes 为空时函数声明在全局；方法所在的类有父类时，
+        任务以只包含 super 的一层作用域开始。返回 false 时由当前 Resolver 顺序解析
+     */
+    private boolean fork(Stmt.Function function, FunctionType functionType, Local superLocal) {
+        if(pending == null || function.lazy != null || scopes.size() != (superLocal == null ? 0 : 1)) return false;
+
+        ClassType classType = currentClass;
+        pending.add(ForkJoinTask.adapt(() -> {
+            Resolver resolver = new Resolver(context);
+            resolver.pending = new ArrayList<>();
+            resolver.currentClass = classType;
+            if(superLocal != null){
+                resolver.beginScope();
+                resolver.peek().put("super", superLocal.copy());
+            }
+            resolver.resolveFunctionBody(function, functionType);
+
+            List<Report> reports = new ArrayList<>();
+            for (Object part : resolver.pending) {
+                for (Object report : (List<?>) part) {
+                    reports.add((Report) report);
+                }
+            }
+            return reports;
+        }).fork());
+        return true;
+    }
+
+    private void reset() {
+        pending = null;
+        scopes.clear();
+        currentScope = new FunctionScope(null, 0);
+        currentFunction = FunctionType.NONE;
+        currentClass = ClassType.NONE;
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
         resolve(expr.left);
@@ -69,21 +208,56 @@ public class Resolver implements Visitor{
 
     @Override
     public Object visitVarExpr(Expr.Variable expr) {
-        if(!scopes.isEmpty() && scopes.peek().containsKey(expr.name.lexeme) && scopes.peek().get(expr.name.lexeme) == false){
-            JLox.error(expr.name,"Can't read local variable in its own initializer.");
+        if(!scopes.isEmpty() && peek().containsKey(expr.name.lexeme) && !peek().get(expr.name.lexeme).defined){
+            error(expr.name,"Can't read local variable in its own initializer.");
         }
         resolveLocal(expr, expr.name);
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private Local resolveLocal(Expr expr, Token name) {
         for(int i = scopes.size() - 1;i >= 0;i --){
-            if(scopes.get(i).containsKey(name.lexeme)){
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            Local local = scopes.get(i).get(name.lexeme);
+            if(local == null)   continue;
+
+            local.uses.add(expr);
+            if(i >= currentScope.scopeBase && local.slot >= 0){
+                expr.depth = Expr.SLOT;
+                expr.index = local.slot;
+            } else if(i >= currentScope.scopeBase){
+                expr.depth = scopes.size() - 1 - i;
+            } else {
+                expr.depth = Expr.UPVALUE;
+                expr.index = capture(currentScope, i, local, name.lexeme);
+                local.captured = true;
+                if(!local.defined || local.initializing)    local.capturedEarly = true;
             }
+            return local;
         }
+        return null;
+    }
 
+    /*
+        变量在第 scopeIndex 层作用域中声明，位于函数 function 之外，返回它在 function 捕获列表中的下标
+     */
+    private int capture(FunctionScope function, int scopeIndex, Local local, String name) {
+        Integer index = function.captureIndexes.get(local);
+        if(index != null)   return index;
+
+        Capture capture;
+        if(scopeIndex >= function.enclosing.scopeBase && local.slot >= 0){
+            capture = new Capture(Expr.SLOT, name, local.slot);
+        } else if(scopeIndex >= function.enclosing.scopeBase){
+            // 顶层代码中的 super，闭包创建时的环境对应第 scopeBase - 1 层作用域
+            capture = new Capture(function.scopeBase - 1 - scopeIndex, name, 0);
+        } else {
+            capture = new Capture(Expr.UPVALUE, name, capture(function.enclosing, scopeIndex, local, name));
+        }
+
+        index = function.captures.size();
+        function.captures.add(capture);
+        function.captureIndexes.put(local, index);
+        return index;
     }
 
     @Override
@@ -98,7 +272,8 @@ public class Resolver implements Visitor{
 
     @Override
     public void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        Local local = declare(stmt.name, () -> stmt.boxed = true);
+        if(local != null)   stmt.slot = local.slot;
         if(stmt.init != null){
             resolve(stmt.init);
         }
@@ -108,33 +283,71 @@ public class Resolver implements Visitor{
     private void define(Token name) {
         if(scopes.isEmpty())  return;
 
-        Map<String, Boolean> peek = scopes.peek();
-        peek.put(name.lexeme,true);
+        peek().get(name.lexeme).defined = true;
     }
 
-    private void declare(Token name) {
-        if(scopes.isEmpty())  return;
+    private Local declare(Token name, Runnable box) {
+        if(scopes.isEmpty())  return null;
 
-        Map<String, Boolean> peek = scopes.peek();
+        Map<String, Local> peek = peek();
         if(peek.containsKey(name.lexeme)){
-            JLox.error(name,
+            error(name,
                     "Already a variable with this name in this scope.");
         }
-        peek.put(name.lexeme,false);
+        Local local = newLocal(box);
+        peek.put(name.lexeme,local);
+        return local;
+    }
+
+    /*
+        函数中的变量分配栈帧槽位，同一个函数中的块共用栈帧，每个声明占用一个槽位
+     */
+    private Local newLocal(Runnable box) {
+        Local local = new Local(box);
+        if(currentScope.enclosing != null || currentScope.inFrame)  local.slot = currentScope.slots ++;
+        return local;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr,expr.name);
+        Local local = resolveLocal(expr,expr.name);
+        if(local != null)   local.assigned = true;
         return null;
     }
 
     @Override
     public void visitBlockStmt(Stmt.Block block) {
+        // 不声明变量的块不需要作用域，解释器直接在当前栈帧和环境中执行
+        if(!declares(block.statements)){
+            resolveAll(block.statements);
+            return;
+        }
+
+        // 顶层代码中最外层的声明块自己开一个栈帧，嵌套在里面的块和函数中的块一样共用这个栈帧
+        boolean opensFrame = currentScope.enclosing == null && !currentScope.inFrame;
+        if(opensFrame){
+            currentScope.inFrame = true;
+            currentScope.slots = 0;
+        }
+
         beginScope();
-        resolve(block.statements);
+        resolveAll(block.statements);
         endScope();
+
+        if(opensFrame){
+            block.frameSize = currentScope.slots;
+            currentScope.inFrame = false;
+        }
+    }
+
+    private static boolean declares(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if(statement instanceof Stmt.Var || statement instanceof Stmt.Function || statement instanceof Stmt.Class){
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -174,51 +387,92 @@ public class Resolver implements Visitor{
 
     @Override
     public void visitFunctionStmt(Stmt.Function function) {
-        declare(function.name);
+        Local local = declare(function.name, () -> function.boxed = true);
         define(function.name);
+        if(local != null)   function.slot = local.slot;
+
+        // 函数体中引用自己时，闭包在函数名赋值之前创建
+        if(local != null)   local.initializing = true;
+        if(!fork(function, FunctionType.FUNCTION, null))   resolveFunction(function,FunctionType.FUNCTION);
+        if(local != null)   local.initializing = false;
+    }
+
+    /*
+        延迟解析的函数体：函数本身在顶层声明，方法所在的类没有父类
+     */
+    void resolveBody(Stmt.Function function, List<Stmt> body, boolean method) {
+        function.body = body;
+        if(!method){
+            resolveFunctionBody(function, FunctionType.FUNCTION);
+            return;
+        }
 
-        resolveFunction(function,FunctionType.FUNCTION);
+        currentClass = ClassType.CLASS;
+        resolveFunctionBody(function, function.name.lexeme.equals("init") ? FunctionType.INIT : FunctionType.METHOD);
+        currentClass = ClassType.NONE;
     }
 
     private void resolveFunction(Stmt.Function function,FunctionType functionType) {
+        // 延迟解析的函数体在第一次调用时单独解析
+        if(function.lazy == null)   resolveFunctionBody(function, functionType);
+    }
+
+    private void resolveFunctionBody(Stmt.Function function,FunctionType functionType) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = functionType;
+        FunctionScope enclosingScope = currentScope;
+        currentScope = new FunctionScope(enclosingScope, scopes.size());
 
         beginScope();
-        for (Token param : function.params) {
-            declare(param);
-            define(param);
+        for (int i = 0; i < function.params.size(); i++) {
+            int param = i;
+            declare(function.params.get(i), () -> function.boxedParams[param] = true);
+            define(function.params.get(i));
+        }
+        if(functionType == FunctionType.METHOD || functionType == FunctionType.INIT){
+            // this 是方法自己的局部变量，调用绑定方法时放在参数之后的槽位
+            Local self = newLocal(null);
+            self.defined = true;
+            peek().put("this", self);
         }
-        resolve(function.body);
+        resolveAll(function.body);
         endScope();
 
+        function.captures = currentScope.captures.toArray(new Capture[0]);
+        function.frameSize = currentScope.slots;
+        currentScope = enclosingScope;
         currentFunction = enclosingFunction;
     }
 
     @Override
     public void visitReturnStmt(Stmt.Return stmt) {
         if(currentFunction == FunctionType.NONE){
-            JLox.error(stmt.keyword, "Can't return from top-level code.");
+            error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if(stmt.value != null){
             if(currentFunction == FunctionType.INIT){
-                JLox.error(stmt.keyword, "Can't return from init method.");
+                error(stmt.keyword, "Can't return from init method.");
             }
 
             resolve(stmt.value);
         }
     }
 
+    @Override
+    public Object visitCompactExpr(Expr.Compact expr) {
+        // 紧凑化在作用域解析之后进行，这里不会遇到
+        return null;
+    }
+
+    @Override
+    public void visitImportStmt(Stmt.Import stmt) {
+        // 模块单独编译，它的顶层声明都是全局变量，与导入处的作用域无关
+    }
+
     @Override
     public Object visitAnonymousFunExpr(Expr.AnonymousFun anonymousFun) {
-        beginScope();
-        for (Token argument : anonymousFun.arguments) {
-            declare(argument);
-            define(argument);
-        }
-        resolve(anonymousFun.body);
-        endScope();
+        resolveFunction(anonymousFun.function, FunctionType.FUNCTION);
         return null;
     }
 
@@ -227,33 +481,39 @@ public class Resolver implements Visitor{
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        Local local = declare(stmt.name, () -> stmt.boxed = true);
         define(stmt.name);
+        if(local != null){
+            stmt.slot = local.slot;
+            local.initializing = true;
+        }
 
+        Local superLocal = null;
         if(stmt.superClass != null ){
             if(stmt.superClass.name.lexeme.equals(stmt.name.lexeme)){
-                JLox.error(stmt.superClass.name,
+                error(stmt.superClass.name,
                         "A class can't inherit from itself.");
             }
+            // 父类表达式在 super 作用域之外求值
+            resolve(stmt.superClass);
             beginScope();
-            scopes.peek().put("super",true);
+            superLocal = newLocal(null);
+            superLocal.defined = true;
+            stmt.superSlot = superLocal.slot;
+            peek().put("super",superLocal);
             currentClass = ClassType.SUBCLASS;
-            resolve(stmt.superClass);
         }
 
-        beginScope();
-        scopes.peek().put("this",true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType type = FunctionType.METHOD;
             if(method.name.lexeme.equals("init")){
                 type = FunctionType.INIT;
             }
-            resolveFunction(method,type);
+            if(!fork(method, type, superLocal))   resolveFunction(method,type);
         }
 
-        endScope();
         if(stmt.superClass != null) endScope();
+        if(local != null)   local.initializing = false;
         currentClass = enclosingClass;
     }
 
@@ -270,10 +530,25 @@ public class Resolver implements Visitor{
         return null;
     }
 
+    @Override
+    public Object visitIndexGetExpr(Expr.IndexGet expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Object visitIndexSetExpr(Expr.IndexSet expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        resolve(expr.value);
+        return null;
+    }
+
     @Override
     public Object visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            JLox.error(expr.keyword,
+            error(expr.keyword,
                     "Can't use 'this' outside of a class.");
             return null;
         }
@@ -285,16 +560,95 @@ public class Resolver implements Visitor{
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            JLox.error(expr.keyword,
+            error(expr.keyword,
                     "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            JLox.error(expr.keyword,
+            error(expr.keyword,
                     "Can't use 'super' in a class with no superclass.");
         }
         resolveLocal(expr,expr.keyword);
+        resolveLocal(expr.receiver,expr.receiver.keyword);
         return null;
     }
 
+    private static final class Local {
+        // 作用域结束时发现需要放进 Cell，由它标记声明处，this 和 super 不会被修改，为 null
+        final Runnable box;
+
+        final List<Expr> uses = new ArrayList<>();
+
+        int slot = -1;
+
+        boolean defined;
+
+        boolean captured;
+
+        boolean assigned;
+
+        // 正在解析声明自身（函数体或类的方法），此时被捕获说明闭包会在变量赋值之前创建
+        boolean initializing;
+
+        boolean capturedEarly;
+
+        Local(Runnable box) {
+            this.box = box;
+        }
+
+        void box() {
+            if(box != null) box.run();
+            for (Expr use : uses) {
+                use.boxed = true;
+            }
+        }
+
+        /*
+            给并行解析的方法体一个自己的 super：super 不会被修改，不会放进 Cell，各个方法体记录的引用互不影响
+         */
+        Local copy() {
+            Local local = new Local(null);
+            local.slot = slot;
+            local.defined = defined;
+            return local;
+        }
+    }
+
+    private static final class Report {
+        final Token token;
+
+        final String message;
+
+        Report(Token token, String message) {
+            this.token = token;
+            this.message = message;
+        }
+
+        void reportTo(ExecutionContext context) {
+            context.error(token, message);
+        }
+    }
+
+    private static final class FunctionScope {
+        final FunctionScope enclosing;
+
+        // 函数自己的第一层作用域（参数）在 scopes 中的位置
+        final int scopeBase;
+
+        // 已分配的栈帧槽位数
+        int slots;
+
+        // 顶层代码正在解析一个开了栈帧的块；块外的顶层代码没有栈帧，父类 super 放在 Environment 中
+        boolean inFrame;
+
+        final List<Capture> captures = new ArrayList<>();
+
+        final Map<Local, Integer> captureIndexes = new HashMap<>();
+
+        FunctionScope(FunctionScope enclosing, int scopeBase) {
+            this.enclosing = enclosing;
+            this.scopeBase = scopeBase;
+        }
+    }
+
     private enum FunctionType {
         NONE,
         FUNCTION,
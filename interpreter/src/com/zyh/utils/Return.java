@@ -1,9 +1,12 @@
 package com.zyh.utils;
 
+/*
+    return 语句的控制流信号，不是真正的错误，不记录调用栈
+ */
 public class Return extends RuntimeException{
-    final Object value;
+    Object value;
 
-    public Return(Object value) {
-        this.value = value;
+    public Return() {
+        super(null, null, false, false);
     }
 }
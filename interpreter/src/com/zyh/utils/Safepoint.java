@@ -0,0 +1,12 @@
+package com.zyh.utils;
+
+/*
+    解释器在检查点（循环回边和函数调用处，每 1024 次检查一次）回调的钩子
+
+    由调度器实现，在时间片用完时让出执行权，poll 返回后继续执行。
+    只在执行所属的线程中调用，spawn 出的任务不受调度。
+ */
+interface Safepoint {
+
+    void poll();
+}
@@ -1,7 +1,5 @@
 package com.zyh.utils;
 
-import com.zyh.JLox;
-
 import java.util.*;
 
 import static com.zyh.utils.TokenType.*;
@@ -40,10 +38,14 @@ public class Scanner {
         // 新增
         keywords.put("break", BREAK);
         keywords.put("continue",CONTINUE);
+        keywords.put("import",IMPORT);
     }
 
-    public Scanner(String source) {
+    private final ExecutionContext context;
+
+    public Scanner(String source, ExecutionContext context) {
         this.source = source;
+        this.context = context;
     }
 
     public List<Token> scanTokens() {
@@ -56,6 +58,35 @@ public class Scanner {
         return tokenList;
     }
 
+    /*
+        边解析边扫描：get(i) 时才扫描到第 i 个词法单元，size 是已经扫描出的个数。只能在一个线程中使用
+     */
+    List<Token> stream() {
+        return new AbstractList<Token>() {
+            @Override
+            public Token get(int index) {
+                while(tokenList.size() <= index && !ended()){
+                    if(isAtEnd()){
+                        tokenList.add(new Token(TokenType.EOF,"",null,line));
+                    } else {
+                        start = current;
+                        scanToken();
+                    }
+                }
+                return tokenList.get(index);
+            }
+
+            @Override
+            public int size() {
+                return tokenList.size();
+            }
+        };
+    }
+
+    private boolean ended() {
+        return !tokenList.isEmpty() && tokenList.get(tokenList.size() - 1).tokenType == TokenType.EOF;
+    }
+
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -63,6 +94,8 @@ public class Scanner {
             case ')': addToken(RIGHT_PAREN); break;
             case '{': addToken(LEFT_BRACE); break;
             case '}': addToken(RIGHT_BRACE); break;
+            case '[': addToken(LEFT_BRACKET); break;
+            case ']': addToken(RIGHT_BRACKET); break;
             case ',': addToken(COMMA); break;
             case '.': addToken(DOT); break;
             case '-': addToken(MINUS); break;
@@ -105,7 +138,7 @@ public class Scanner {
                 } else if(isAlpha(c)){  // 最大匹配原则
                     identifier();
                 }else {
-                    JLox.error(line, "Unexpected character.");
+                    context.error(line, "Unexpected character.");
                 }
                 break;
         }
@@ -166,13 +199,13 @@ public class Scanner {
         }
 
         if(isAtEnd()){
-            JLox.error(line,"Unterminated string.");
+            context.error(line,"Unterminated string.");
             return;
         }
 
         current ++;
         String text = source.substring(start + 1,current - 1);
-        addToken(STRING,text);
+        addToken(STRING,new LoxString(text));
     }
 
     private char peek() {
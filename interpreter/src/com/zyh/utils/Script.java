@@ -0,0 +1,88 @@
+package com.zyh.utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+    LoxEngine 编译好的脚本
+
+    语法树和作用域解析结果在编译完成后不再修改，所以同一个 Script 可以同时在多个线程中执行。
+    每次 execute 都会创建新的 Interpreter 和全局环境，执行之间互不影响。
+    返回值是脚本最后一条表达式语句的值，最后一条不是表达式语句时返回 null。
+ */
+public final class Script {
+
+    private final List<Stmt> statements;
+
+    Script(List<Stmt> statements) {
+        this.statements = Collections.unmodifiableList(statements);
+    }
+
+    public Object execute() {
+        return execute(Collections.emptyMap());
+    }
+
+    public Object execute(Map<String, ?> bindings) {
+        return execute(bindings, LoxOutput.stdout());
+    }
+
+    /*
+        bindings 在执行前定义为全局变量，print 写入 output，运行时错误以 RuntimeError 抛出
+     */
+    public Object execute(Map<String, ?> bindings, LoxOutput output) {
+        return execute(null, bindings, output);
+    }
+
+    public Object execute(GlobalsSnapshot snapshot, Map<String, ?> bindings) {
+        return execute(snapshot, bindings, LoxOutput.stdout());
+    }
+
+    /*
+        以 snapshot 中冻结的全局变量为起点执行，snapshot 为 null 时从只有原生函数的全局环境开始
+     */
+    public Object execute(GlobalsSnapshot snapshot, Map<String, ?> bindings, LoxOutput output) {
+        return execute(snapshot, bindings, output, ExecutionBudget.UNLIMITED);
+    }
+
+    /*
+        超出 budget 中任一上限时抛出 RuntimeError
+     */
+    public Object execute(GlobalsSnapshot snapshot, Map<String, ?> bindings, LoxOutput output, ExecutionBudget budget) {
+        return execute(new ExecutionContext(output, null, budget), snapshot, bindings);
+    }
+
+    Object execute(ExecutionContext context, GlobalsSnapshot snapshot, Map<String, ?> bindings) {
+        Interpreter interpreter = interpreter(context, snapshot, bindings);
+        try {
+            return LoxEngine.toJava(interpreter.run(statements));
+        } finally {
+            context.output().flush();
+        }
+    }
+
+    /*
+        把脚本作为预加载脚本执行一次，返回执行后冻结的全局变量
+     */
+    public GlobalsSnapshot snapshot() {
+        return snapshot(LoxOutput.stdout());
+    }
+
+    public GlobalsSnapshot snapshot(LoxOutput output) {
+        Interpreter interpreter = interpreter(new ExecutionContext(output, null), null, Collections.emptyMap());
+        try {
+            interpreter.run(statements);
+        } finally {
+            output.flush();
+        }
+        return interpreter.snapshot();
+    }
+
+    private static Interpreter interpreter(ExecutionContext context, GlobalsSnapshot snapshot, Map<String, ?> bindings) {
+        Interpreter interpreter = snapshot == null ? new Interpreter(context) : new Interpreter(context, snapshot);
+        for (Map.Entry<String, ?> binding : bindings.entrySet()) {
+            interpreter.defineGlobal(binding.getKey(), LoxEngine.toLox(binding.getValue()));
+        }
+        return interpreter;
+    }
+}
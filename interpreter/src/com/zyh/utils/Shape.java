@@ -0,0 +1,43 @@
+package com.zyh.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    实例的形状（隐藏类）：记录字段名到字段下标的映射
+
+    同一个类按相同顺序添加字段的实例共享同一串形状，实例自己只保存形状和一个字段值数组。
+    形状创建后不再修改，添加字段时沿转换边得到下一个形状，转换边在第一次添加时记录下来。
+ */
+final class Shape {
+
+    private final Map<String, Integer> indexes;
+
+    final int size;
+
+    // 添加一个字段后的形状，实例可能在多个任务中添加字段，所以用 ConcurrentHashMap
+    private final Map<String, Shape> transitions = new ConcurrentHashMap<>();
+
+    Shape() {
+        this.indexes = new HashMap<>();
+        this.size = 0;
+    }
+
+    private Shape(Shape parent, String name) {
+        this.indexes = new HashMap<>(parent.indexes);
+        this.indexes.put(name, parent.size);
+        this.size = parent.size + 1;
+    }
+
+    int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    Shape with(String name) {
+        Shape next = transitions.get(name);
+        if (next != null) return next;
+        return transitions.computeIfAbsent(name, n -> new Shape(this, n));
+    }
+}
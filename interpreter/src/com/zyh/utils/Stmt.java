@@ -1,13 +1,23 @@
 package com.zyh.utils;
 
+import java.nio.file.Path;
 import java.util.List;
 
+/*
+    语句节点中直接持有的表达式（Expression、Print、Var、IF、WHILE、Return）在紧凑模式下会被 Compactor 替换为 Expr.Compact
+ */
 public abstract class Stmt {
 
+    // 语句开始的行号，由 Parser 填写；for 循环展开出的语句为 0
+    int line;
+
+    // 覆盖率计数器在 LoxCoverage.counts 中的下标，没有插桩时为 -1
+    int counter = -1;
+
     abstract void accept(Visitor visitor);
 
     static class Expression extends Stmt{
-        final Expr expr;
+        Expr expr;
 
         public Expression(Expr expr) {
             this.expr = expr;
@@ -20,7 +30,7 @@ public abstract class Stmt {
     }
 
     static class Print extends Stmt{
-        final Expr expr;
+        Expr expr;
 
         public Print(Expr expr) {
             this.expr = expr;
@@ -35,7 +45,13 @@ public abstract class Stmt {
     static class Var extends Stmt{
         final Token name;
 
-        final Expr init;
+        Expr init;
+
+        // 被闭包捕获且会被修改，定义时放进 Cell
+        boolean boxed;
+
+        // 函数中的局部变量在栈帧中的槽位，-1 表示定义在 Environment 中
+        int slot = -1;
 
         public Var(Token name, Expr init) {
             this.name = name;
@@ -51,6 +67,10 @@ public abstract class Stmt {
     static class Block extends Stmt{
         final List<Stmt> statements;
 
+        // 大于 0 时执行这个块要先开一个栈帧，只有顶层代码中最外层的声明块会开栈帧，
+        // 其他块的变量都在所在函数或块的栈帧里，块本身不分配任何东西
+        int frameSize;
+
         public Block(List<Stmt> statements) {
             this.statements = statements;
         }
@@ -62,12 +82,15 @@ public abstract class Stmt {
     }
 
     static class IF extends Stmt{
-        final Expr condition;
+        Expr condition;
 
         final Stmt thenBranch;
 
         final Stmt elseBranch;
 
+        // 覆盖率：branch 处计条件为真的次数，branch + 1 处计为假的次数
+        int branch = -1;
+
         public IF(Expr condition, Stmt thenBranch, Stmt elseBranch) {
             this.condition = condition;
             this.thenBranch = thenBranch;
@@ -81,13 +104,20 @@ public abstract class Stmt {
     }
 
     static class WHILE extends Stmt{
-        final Expr condition;
+        // while 或 for 关键字，用于报告超出执行预算的位置
+        final Token keyword;
+
+        Expr condition;
 
         final Stmt body;
 
         final Stmt increment;
 
-        public WHILE(Expr condition, Stmt body, Stmt increment) {
+        // 覆盖率：branch 处计进入循环体的次数，branch + 1 处计条件为假退出的次数
+        int branch = -1;
+
+        public WHILE(Token keyword, Expr condition, Stmt body, Stmt increment) {
+            this.keyword = keyword;
             this.condition = condition;
             this.body = body;
             this.increment = increment;
@@ -117,12 +147,41 @@ public abstract class Stmt {
 
         final List<Token>   params;
 
-        final List<Stmt>    body;
+        List<Stmt>    body;
+
+        // 延迟解析的函数体，第一次调用前由 materialize 解析，之后为 null
+        volatile LazyBody lazy;
+
+        // 以下由 Resolver 填写：创建闭包时要捕获的变量，函数名和各个参数是否放进 Cell
+        Capture[] captures = Capture.NONE;
+
+        boolean boxed;
+
+        boolean[] boxedParams;
+
+        int slot = -1;
+
+        // 栈帧大小：参数占前面的槽位，方法的 this 紧随其后，然后是函数体中声明的变量
+        int frameSize;
 
         public Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
             this.params = params;
             this.body = body;
+            this.boxedParams = new boolean[params.size()];
+        }
+
+        public Function(Token name, List<Token> params, LazyBody lazy) {
+            this(name, params, (List<Stmt>) null);
+            this.lazy = lazy;
+        }
+
+        synchronized void materialize() {
+            LazyBody pending = lazy;
+            if (pending == null) return;
+
+            pending.compile(this);
+            lazy = null;
         }
 
         @Override
@@ -134,7 +193,7 @@ public abstract class Stmt {
     static class Return extends Stmt{
         final Token keyword;
 
-        final Expr value;
+        Expr value;
 
         public Return(Token keyword, Expr value) {
             this.keyword = keyword;
@@ -147,6 +206,30 @@ public abstract class Stmt {
         }
     }
 
+    static class Import extends Stmt{
+        final Token keyword;
+
+        // 解析时已经相对于所在文件的目录展开成绝对路径
+        final Path path;
+
+        // 模块沿用导入它的脚本的解析方式
+        final boolean lazy;
+
+        // 紧凑模式下由 Compactor 设置
+        boolean compact;
+
+        public Import(Token keyword, Path path, boolean lazy) {
+            this.keyword = keyword;
+            this.path = path;
+            this.lazy = lazy;
+        }
+
+        @Override
+        void accept(Visitor visitor) {
+            visitor.visitImportStmt(this);
+        }
+    }
+
     static class Class extends Stmt{
         final Token name;
 
@@ -154,6 +237,13 @@ public abstract class Stmt {
 
         final Expr.Variable superClass;
 
+        boolean boxed;
+
+        int slot = -1;
+
+        // 在函数中声明的子类，super 放在栈帧的这个槽位
+        int superSlot = -1;
+
         public Class(Token name, List<Function> methods, Expr.Variable superClass) {
             this.name = name;
             this.methods = methods;
@@ -0,0 +1,353 @@
+package com.zyh.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    类型推断：作用域解析之后按控制流推断栈帧槽位中局部变量和各个表达式的类型，
+    两个操作数都能证明是数字的二元运算（以及操作数是数字的取负）标记为 numeric，解释器对它们跳过类型检查
+
+    只跟踪没有放进 Cell 的槽位变量：它们只能被本函数中的声明和赋值修改。全局变量、捕获的变量、
+    调用、属性和下标的结果都是未知类型，对应的运算仍然走带检查的通用路径。
+    分支结束时合并两边的类型，不同即为未知；循环反复分析到槽位类型不再变化为止，最后一遍的标记才是结果。
+    break / continue 可以从被调用的函数中抛出，所以循环中的每个调用点也当作一个可能的出口。
+ */
+public class TypeInference implements Visitor<Byte> {
+
+    static final byte UNKNOWN = 0;
+
+    static final byte NUMBER = 1;
+
+    static final byte STRING = 2;
+
+    static final byte BOOLEAN = 3;
+
+    static final byte NIL = 4;
+
+    // 当前位置每个槽位的类型，null 表示不可达
+    private byte[] state = new byte[0];
+
+    private final List<Loop> loops = new ArrayList<>();
+
+    public void infer(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            infer(statement);
+        }
+    }
+
+    /*
+        延迟解析的函数体在解析之后单独推断
+     */
+    void inferBody(Stmt.Function function) {
+        byte[] enclosingState = state;
+        List<Loop> enclosingLoops = new ArrayList<>(loops);
+        loops.clear();
+
+        // 参数和 this 的类型未知
+        state = new byte[function.frameSize];
+        infer(function.body);
+
+        state = enclosingState;
+        loops.addAll(enclosingLoops);
+    }
+
+    private void infer(Stmt statement) {
+        if(statement != null)   statement.accept(this);
+    }
+
+    private byte type(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private byte read(int slot) {
+        if(state == null || slot >= state.length)   return UNKNOWN;
+        return state[slot];
+    }
+
+    private void write(int slot, byte type) {
+        if(state == null || slot < 0)   return;
+        if(slot >= state.length)    state = Arrays.copyOf(state, slot + 1);
+        state[slot] = type;
+    }
+
+    private static byte[] copy(byte[] state) {
+        return state == null ? null : state.clone();
+    }
+
+    /*
+        合并两条路径的类型，不可达的一边不影响结果
+     */
+    private static byte[] join(byte[] left, byte[] right) {
+        if(left == null)    return copy(right);
+        if(right == null)   return copy(left);
+
+        byte[] joined = new byte[Math.max(left.length, right.length)];
+        for (int i = 0; i < joined.length; i++) {
+            byte l = i < left.length ? left[i] : UNKNOWN;
+            byte r = i < right.length ? right[i] : UNKNOWN;
+            joined[i] = l == r ? l : UNKNOWN;
+        }
+        return joined;
+    }
+
+    private static boolean same(byte[] left, byte[] right) {
+        if(left == null || right == null)   return left == right;
+
+        for (int i = 0; i < Math.max(left.length, right.length); i++) {
+            byte l = i < left.length ? left[i] : UNKNOWN;
+            byte r = i < right.length ? right[i] : UNKNOWN;
+            if(l != r)  return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Byte visitBinaryExpr(Expr.Binary expr) {
+        byte left = type(expr.left);
+        byte right = type(expr.right);
+        expr.numeric = left == NUMBER && right == NUMBER;
+
+        switch (expr.operator.tokenType) {
+            case PLUS:
+                // 其他组合的结果可能是 nil
+                if(expr.numeric)    return NUMBER;
+                return left == STRING && right == STRING ? STRING : UNKNOWN;
+            case MINUS:
+            case STAR:
+            case SLASH:
+                // 操作数不是数字时抛出运行时错误，正常返回的一定是数字
+                return NUMBER;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return BOOLEAN;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    @Override
+    public Byte visitGroupingExpr(Expr.Grouping expr) {
+        return type(expr.expression);
+    }
+
+    @Override
+    public Byte visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value instanceof Double)    return NUMBER;
+        if(expr.value instanceof LoxString) return STRING;
+        if(expr.value instanceof Boolean)   return BOOLEAN;
+        return expr.value == null ? NIL : UNKNOWN;
+    }
+
+    @Override
+    public Byte visitUnaryExpr(Expr.Unary expr) {
+        byte right = type(expr.right);
+        if(expr.operator.tokenType == TokenType.MINUS){
+            expr.numeric = right == NUMBER;
+            return NUMBER;
+        }
+        return expr.operator.tokenType == TokenType.BANG ? BOOLEAN : UNKNOWN;
+    }
+
+    @Override
+    public Byte visitVarExpr(Expr.Variable expr) {
+        if(expr.depth == Expr.SLOT && !expr.boxed)  return read(expr.index);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitAssignExpr(Expr.Assign expr) {
+        byte value = type(expr.value);
+        if(expr.depth == Expr.SLOT && !expr.boxed)  write(expr.index, value);
+        return value;
+    }
+
+    @Override
+    public Byte visitLogicExpr(Expr.Logic logic) {
+        byte left = type(logic.left);
+        byte[] skipped = copy(state);
+        byte right = type(logic.right);
+        state = join(skipped, state);
+        return left == right ? left : UNKNOWN;
+    }
+
+    @Override
+    public Byte visitCallExpr(Expr.Call expr) {
+        type(expr.callee);
+        for (Expr argument : expr.arguments) {
+            type(argument);
+        }
+        // 循环增量中抛出的 break / continue 会越过当前循环，所以外层循环也算上
+        for (Loop loop : loops) {
+            loop.exit(state);
+        }
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitAnonymousFunExpr(Expr.AnonymousFun anonymousFun) {
+        inferFunction(anonymousFun.function);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitGetExpr(Expr.Get expr) {
+        type(expr.object);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitSetExpr(Expr.Set expr) {
+        type(expr.object);
+        type(expr.value);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitIndexGetExpr(Expr.IndexGet expr) {
+        type(expr.object);
+        type(expr.index);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitIndexSetExpr(Expr.IndexSet expr) {
+        type(expr.object);
+        type(expr.index);
+        type(expr.value);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitThisExpr(Expr.This expr) {
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitSuperExpr(Expr.Super expr) {
+        return UNKNOWN;
+    }
+
+    @Override
+    public Byte visitCompactExpr(Expr.Compact expr) {
+        // 推断在紧凑化之前进行，这里不会遇到
+        return UNKNOWN;
+    }
+
+    @Override
+    public void visitExpressionStmt(Stmt.Expression stmt) {
+        type(stmt.expr);
+    }
+
+    @Override
+    public void visitPrintStmt(Stmt.Print stmt) {
+        type(stmt.expr);
+    }
+
+    @Override
+    public void visitVarStmt(Stmt.Var stmt) {
+        byte init = stmt.init == null ? NIL : type(stmt.init);
+        if(!stmt.boxed) write(stmt.slot, init);
+    }
+
+    @Override
+    public void visitBlockStmt(Stmt.Block block) {
+        infer(block.statements);
+    }
+
+    @Override
+    public void visitIfStmt(Stmt.IF stmt) {
+        type(stmt.condition);
+        byte[] otherwise = copy(state);
+        infer(stmt.thenBranch);
+        byte[] then = state;
+        state = otherwise;
+        infer(stmt.elseBranch);
+        state = join(then, state);
+    }
+
+    @Override
+    public void visitWhileStmt(Stmt.WHILE stmt) {
+        byte[] head = copy(state);
+        while (true) {
+            state = copy(head);
+            type(stmt.condition);
+            byte[] exit = copy(state);
+
+            Loop loop = new Loop();
+            loops.add(loop);
+            infer(stmt.body);
+            state = join(state, loop.continues);
+            infer(stmt.increment);
+            loops.remove(loops.size() - 1);
+
+            byte[] next = join(head, state);
+            if(same(next, head)){
+                state = join(exit, loop.breaks);
+                return;
+            }
+            head = next;
+        }
+    }
+
+    @Override
+    public void visitLoopContral(Stmt.LOOPCONTRAL loopcontral) {
+        if(!loops.isEmpty()){
+            Loop loop = loops.get(loops.size() - 1);
+            if(loopcontral.type.tokenType == TokenType.BREAK){
+                loop.breaks = join(loop.breaks, state);
+            } else {
+                loop.continues = join(loop.continues, state);
+            }
+        }
+        state = null;
+    }
+
+    @Override
+    public void visitFunctionStmt(Stmt.Function function) {
+        if(!function.boxed) write(function.slot, UNKNOWN);
+        inferFunction(function);
+    }
+
+    private void inferFunction(Stmt.Function function) {
+        // 延迟解析的函数体在第一次调用时推断
+        if(function.lazy == null)   inferBody(function);
+    }
+
+    @Override
+    public void visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.value != null)  type(stmt.value);
+        state = null;
+    }
+
+    @Override
+    public void visitImportStmt(Stmt.Import stmt) {
+    }
+
+    @Override
+    public void visitClassStmt(Stmt.Class stmt) {
+        if(!stmt.boxed) write(stmt.slot, UNKNOWN);
+        write(stmt.superSlot, UNKNOWN);
+        for (Stmt.Function method : stmt.methods) {
+            inferFunction(method);
+        }
+    }
+
+    /*
+        一层循环中 break 和 continue 时各个槽位的类型
+     */
+    private static final class Loop {
+        byte[] breaks;
+
+        byte[] continues;
+
+        void exit(byte[] state) {
+            breaks = join(breaks, state);
+            continues = join(continues, state);
+        }
+    }
+}
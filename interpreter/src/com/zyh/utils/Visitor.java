@@ -35,6 +35,8 @@ public interface Visitor<R> {
 
     void visitReturnStmt(Stmt.Return aReturn);
 
+    void visitImportStmt(Stmt.Import anImport);
+
     R visitAnonymousFunExpr(Expr.AnonymousFun anonymousFun);
 
     void visitClassStmt(Stmt.Class aClass);
@@ -43,7 +45,13 @@ public interface Visitor<R> {
 
     R visitSetExpr(Expr.Set set);
 
+    R visitIndexGetExpr(Expr.IndexGet get);
+
+    R visitIndexSetExpr(Expr.IndexSet set);
+
     R visitThisExpr(Expr.This aThis);
 
     R visitSuperExpr(Expr.Super aSuper);
+
+    R visitCompactExpr(Expr.Compact compact);
 }